@@ -0,0 +1,487 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import com.sun.management.ThreadMXBean;
+
+// Headless checks and measurements for the audio engine, no output line needed.
+// Recording formats are checked by RecordingBenchmark, the network by
+// NetworkBenchmark and ServerLoadTest.
+// Usage: java AudioBenchmark <check>
+//   alloc     - fails if a warm render block allocates anything
+//   wavetable - samples/sec and error of wavetable vs exact oscillators
+//   samples   - heap vs off-heap bytes after loading every piano note
+//   startup   - piano sample load time with a cold and a warm PCM cache
+//   queue     - note event queue throughput, ordering and depth under 4 producers
+//   metronome - beat-interval jitter of the in-stream metronome
+//   sequencer - note-onset error of sequenced playback, with pauses
+//   seek      - sounding-note index vs a linear scan, and A-B loop accuracy
+//   stream    - heap use and time to first note, streamed vs fully loaded playback
+public class AudioBenchmark {
+    // keeps the JIT from discarding benchmark loops
+    static volatile double sink;
+
+    public static void main(String[] args) throws Exception {
+        String check = args.length > 0 ? args[0] : "alloc";
+        switch (check) {
+            case "alloc":
+                System.exit(allocationCheck() ? 0 : 1);
+                break;
+            case "wavetable":
+                wavetableBenchmark();
+                break;
+            case "samples":
+                sampleMemory();
+                break;
+            case "startup":
+                startupTime();
+                break;
+            case "queue":
+                System.exit(queueCheck() ? 0 : 1);
+                break;
+            case "metronome":
+                metronomeJitter();
+                break;
+            case "sequencer":
+                System.exit(sequencerTiming() ? 0 : 1);
+                break;
+            case "seek":
+                System.exit(seekCheck() ? 0 : 1);
+                break;
+            case "stream":
+                System.exit(streamCheck(args.length > 1 ? Integer.parseInt(args[1]) : 300_000) ? 0 : 1);
+                break;
+            default:
+                System.err.println("Unknown check: " + check);
+                System.exit(2);
+        }
+    }
+
+    // Holds ten notes across every oscillator timbre, with a sequencer looping
+    // a short region on top so block splitting and loop jumps are covered too,
+    // and renders warm blocks, measuring this thread's allocated bytes around
+    // the loop.
+    static boolean allocationCheck() {
+        ThreadMXBean mx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        AudioEngine engine = ToneGenerator.createOfflineEngine();
+        byte[] block = new byte[2 * AudioEngine.BLOCK_FRAMES];
+        for (int k = 0; k < 10; k++) {
+            engine.noteOn(k * 3, k % 4, AudioEngine.LOCAL);
+        }
+        Sequencer sequencer = new Sequencer(spacedScore(new Random(3), 20));
+        sequencer.setLoop(500, 2500);
+        engine.startSequencer(sequencer);
+
+        for (int i = 0; i < 20_000; i++) {
+            engine.render(block, AudioEngine.BLOCK_FRAMES);
+        }
+
+        // cost of the measurement itself
+        long overheadStart = mx.getThreadAllocatedBytes(tid);
+        long overhead = mx.getThreadAllocatedBytes(tid) - overheadStart;
+
+        int blocks = 10_000;
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < blocks; i++) {
+            engine.render(block, AudioEngine.BLOCK_FRAMES);
+        }
+        long allocated = mx.getThreadAllocatedBytes(tid) - before - overhead;
+
+        System.out.printf("alloc: %d bytes over %d blocks (%.3f bytes/block)%n",
+            allocated, blocks, allocated / (double) blocks);
+        return allocated <= 0;
+    }
+
+    static void wavetableBenchmark() {
+        int samples = 20_000_000;
+        double increment = 2.0 * Math.PI * 440.0 / AudioEngine.SAMPLE_RATE;
+        for (int timbre = 0; timbre < ToneGenerator.PIANO; timbre++) {
+            double[] table = Wavetable.table(timbre);
+
+            // warm both paths before timing
+            runExact(timbre, increment, samples / 10);
+            runTable(table, increment, samples / 10);
+
+            long t0 = System.nanoTime();
+            sink = runExact(timbre, increment, samples);
+            long t1 = System.nanoTime();
+            sink = runTable(table, increment, samples);
+            long t2 = System.nanoTime();
+
+            double maxErr = 0, sumSq = 0;
+            double phase = 0;
+            int n = 1_000_000;
+            for (int i = 0; i < n; i++) {
+                double err = Math.abs(ToneGenerator.generateWave(phase, timbre) - Wavetable.read(table, phase));
+                maxErr = Math.max(maxErr, err);
+                sumSq += err * err;
+                phase += increment;
+                if (phase >= 2.0 * Math.PI) phase -= 2.0 * Math.PI;
+            }
+
+            System.out.printf("%-9s exact %7.1f Msamples/s  wavetable %7.1f Msamples/s  speedup %4.1fx  "
+                    + "max err %.2e  rms err %.2e%n",
+                ToneGenerator.TIMBRES[timbre],
+                samples / ((t1 - t0) / 1e3), samples / ((t2 - t1) / 1e3),
+                (t1 - t0) / (double) (t2 - t1),
+                maxErr, Math.sqrt(sumSq / n));
+        }
+    }
+
+    private static double runExact(int timbre, double increment, int samples) {
+        double phase = 0, acc = 0;
+        for (int i = 0; i < samples; i++) {
+            acc += ToneGenerator.generateWave(phase, timbre);
+            phase += increment;
+            if (phase >= 2.0 * Math.PI) phase -= 2.0 * Math.PI;
+        }
+        return acc;
+    }
+
+    private static double runTable(double[] table, double increment, int samples) {
+        double phase = 0, acc = 0;
+        for (int i = 0; i < samples; i++) {
+            acc += Wavetable.read(table, phase);
+            phase += increment;
+            if (phase >= 2.0 * Math.PI) phase -= 2.0 * Math.PI;
+        }
+        return acc;
+    }
+
+    static void sampleMemory() {
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = rt.totalMemory() - rt.freeMemory();
+        long t0 = System.nanoTime();
+        ToneGenerator.loadPianoSamples();
+        long t1 = System.nanoTime();
+        System.gc();
+        long heapAfter = rt.totalMemory() - rt.freeMemory();
+
+        SampleStore store = ToneGenerator.getSampleStore();
+        System.out.printf("samples: loaded in %d ms, off-heap %.1f MB (budget %.0f MB), heap delta %.1f MB%n",
+            (t1 - t0) / 1_000_000,
+            store.usedBytes() / 1048576.0, store.budgetBytes() / 1048576.0,
+            (heapAfter - heapBefore) / 1048576.0);
+    }
+
+    // Same JVM for both runs, so the warm number includes a hot OS page cache
+    // but no JIT advantage for decoding (the warm path never decodes).
+    static void startupTime() {
+        String dir = "piano_samples";
+        new File(dir, SampleCache.FILE_NAME).delete();
+
+        long t0 = System.nanoTime();
+        boolean firstWarm = SampleCache.loadInto(new SampleStore(Long.MAX_VALUE), dir, ToneGenerator.NOTES);
+        long t1 = System.nanoTime();
+        boolean secondWarm = SampleCache.loadInto(new SampleStore(Long.MAX_VALUE), dir, ToneGenerator.NOTES);
+        long t2 = System.nanoTime();
+
+        System.out.printf("startup: cold cache %d ms (hit=%b), warm cache %d ms (hit=%b)%n",
+            (t1 - t0) / 1_000_000, firstWarm, (t2 - t1) / 1_000_000, secondWarm);
+    }
+
+    // Each producer sends an increasing counter in the key field; the consumer
+    // checks every producer's events arrive complete and in order.
+    static boolean queueCheck() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 500_000;
+        NoteEventQueue queue = new NoteEventQueue(1024);
+        int[] lastSeen = new int[producers];
+        Arrays.fill(lastSeen, -1);
+        boolean[] ordered = {true};
+        NoteEventQueue.Handler handler = (type, key, timbre, owner, sample) -> {
+            if (key != lastSeen[timbre] + 1) ordered[0] = false;
+            lastSeen[timbre] = key;
+        };
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!queue.offer(0, i, id, 0, null)) {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+
+        long t0 = System.nanoTime();
+        for (Thread t : threads) t.start();
+        long received = 0;
+        long total = (long) producers * perProducer;
+        while (received < total) {
+            int n = queue.drain(handler);
+            received += n;
+            if (n == 0) Thread.yield();
+        }
+        long t1 = System.nanoTime();
+        for (Thread t : threads) t.join();
+
+        System.out.printf("queue: %d events in %d ms (%.1f M events/s), max depth %d of %d, ordered=%b, full-ring retries=%d%n",
+            total, (t1 - t0) / 1_000_000, total / ((t1 - t0) / 1e3), queue.maxDepth(), queue.capacity(),
+            ordered[0], queue.droppedEvents());
+        return ordered[0];
+    }
+
+    // Renders uneven block sizes (like the offline renderer does around events)
+    // and compares every beat onset frame with the ideal beat position.
+    static void metronomeJitter() {
+        Random random = new Random(42);
+        byte[] block = new byte[2 * AudioEngine.BLOCK_FRAMES];
+        for (int bpm : new int[]{60, 120, 173, 240}) {
+            AudioEngine engine = ToneGenerator.createOfflineEngine();
+            engine.setMetronomeBpm(bpm);
+            double framesPerBeat = AudioEngine.SAMPLE_RATE * 60.0 / bpm;
+
+            int beats = 500;
+            long firstBeat = -1;
+            long seen = 0;
+            double maxDevUs = 0, sumSq = 0;
+            while (seen < beats) {
+                engine.render(block, 1 + random.nextInt(AudioEngine.BLOCK_FRAMES));
+                if (engine.beatCount() != seen) {
+                    seen = engine.beatCount();
+                    if (firstBeat < 0) firstBeat = engine.lastBeatFrame();
+                    double ideal = firstBeat + (seen - 1) * framesPerBeat;
+                    double devUs = (engine.lastBeatFrame() - ideal) * 1e6 / AudioEngine.SAMPLE_RATE;
+                    maxDevUs = Math.max(maxDevUs, Math.abs(devUs));
+                    sumSq += devUs * devUs;
+                }
+            }
+            System.out.printf("metronome %3d bpm: %d beats, max deviation %.1f us, rms %.1f us (1 frame = %.1f us)%n",
+                bpm, beats, maxDevUs, Math.sqrt(sumSq / beats), 1e6 / AudioEngine.SAMPLE_RATE);
+        }
+    }
+
+    // Plays a score of short sawtooth notes (some as two-note chords) through a
+    // sequencer into a headless sink, pausing between blocks now and then, and
+    // finds every onset in the rendered PCM. The attack ramp starts from zero,
+    // so the note-on frame is the one before the first non-zero sample. Each
+    // onset must land on the note's start frame plus the frames spent paused.
+    static boolean sequencerTiming() {
+        Random random = new Random(7);
+        Score score = spacedScore(random, 200);
+
+        AudioEngine engine = ToneGenerator.createOfflineEngine();
+        Sequencer sequencer = new Sequencer(score);
+        engine.startSequencer(sequencer);
+
+        // {song frame, paused frames so far} at the start of every playing block
+        List<long[]> blocks = new ArrayList<>();
+        byte[] block = new byte[2 * AudioEngine.BLOCK_FRAMES];
+        long frame = 0;
+        long pausedFrames = 0;
+        long silentRun = Integer.MAX_VALUE;
+        List<Long> onsets = new ArrayList<>();
+        while (!sequencer.isFinished() || engine.activeVoices() > 0) {
+            // pauses only fall in silence, so a resumed note can't pass for an onset
+            boolean pause = engine.activeVoices() == 0 && random.nextInt(10) == 0;
+            sequencer.setPaused(pause);
+            int frames = 1 + random.nextInt(AudioEngine.BLOCK_FRAMES);
+            if (!pause) blocks.add(new long[]{frame - pausedFrames, pausedFrames});
+            engine.render(block, frames);
+            for (int i = 0; i < frames; i++) {
+                boolean silent = block[2 * i] == 0 && block[2 * i + 1] == 0;
+                // a sawtooth passes through zero mid-note; onsets follow real silence
+                if (!silent && silentRun > 64) {
+                    onsets.add(frame + i - 1);
+                }
+                silentRun = silent ? silentRun + 1 : 0;
+            }
+            if (pause) pausedFrames += frames;
+            frame += frames;
+        }
+
+        // chords share one onset
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < score.size(); i++) {
+            if (i > 0 && score.start(i) == score.start(i - 1)) continue;
+            expected.add(Sequencer.msToFrame(score.start(i)));
+        }
+
+        // map each expected song frame to the output frame through the block log
+        int misses = 0;
+        long maxError = 0;
+        int b = 0;
+        for (int i = 0; i < expected.size() && i < onsets.size(); i++) {
+            long songFrame = expected.get(i);
+            while (b + 1 < blocks.size() && blocks.get(b + 1)[0] <= songFrame) b++;
+            long outputFrame = songFrame + blocks.get(b)[1];
+            long error = Math.abs(onsets.get(i) - outputFrame);
+            maxError = Math.max(maxError, error);
+            if (error != 0) misses++;
+        }
+        boolean ok = onsets.size() == expected.size() && misses == 0;
+        System.out.printf("sequencer: %d notes, %d onsets found (%d expected), %d paused frames, max onset error %d frames%s%n",
+            score.size(), onsets.size(), expected.size(), pausedFrames, maxError, ok ? "" : " FAILED");
+        return ok;
+    }
+
+    // Short sawtooth notes (every fifth one a two-note chord) with enough
+    // silence between them for release tails to end before the next onset.
+    private static Score spacedScore(Random random, int notes) {
+        List<String[]> rows = new ArrayList<>();
+        long t = 50;
+        for (int i = 0; i < notes; i++) {
+            long length = 20 + random.nextInt(150);
+            rows.add(new String[]{ToneGenerator.NOTES[random.nextInt(37)], "" + t, "" + (t + length), "sawtooth"});
+            if (i % 5 == 0) {
+                rows.add(new String[]{ToneGenerator.NOTES[random.nextInt(37)], "" + t, "" + (t + length), "sawtooth"});
+            }
+            t += length + 120 + random.nextInt(200);
+        }
+        return Score.compile(rows);
+    }
+
+    // Checks Score.soundingAt against a linear scan on a dense 200k-note score
+    // and times both. Then loops a region of a sparse score through a
+    // sequencer: every onset in one pass must repeat exactly one loop length
+    // later.
+    static boolean seekCheck() {
+        Random random = new Random(11);
+        int n = 200_000;
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            long start = random.nextInt(3_600_000);
+            long length = random.nextInt(10) == 0 ? random.nextInt(120_000) : random.nextInt(2_000);
+            rows.add(new String[]{ToneGenerator.NOTES[random.nextInt(37)], "" + start, "" + (start + length), "sine"});
+        }
+        Score dense = Score.compile(rows);
+
+        int[] found = new int[n];
+        long[] times = new long[2_000];
+        for (int i = 0; i < times.length; i++) times[i] = random.nextInt(3_700_000);
+        boolean ok = true;
+        long indexNanos = 0, scanNanos = 0, hits = 0;
+        for (int round = 0; round < 3; round++) { // the first rounds warm up the JIT
+            indexNanos = 0;
+            scanNanos = 0;
+            hits = 0;
+            for (long t : times) {
+                long t0 = System.nanoTime();
+                int count = dense.soundingAt(t, found);
+                long t1 = System.nanoTime();
+                int expected = 0;
+                for (int i = 0; i < dense.size(); i++) {
+                    if (dense.start(i) < t && dense.end(i) > t) {
+                        if (expected >= count || found[expected] != i) ok = false;
+                        expected++;
+                    }
+                }
+                long t2 = System.nanoTime();
+                if (expected != count) ok = false;
+                indexNanos += t1 - t0;
+                scanNanos += t2 - t1;
+                hits += count;
+            }
+        }
+        System.out.printf("seek: %d notes, %.1f sounding per seek, index %.1f us vs scan %.1f us per seek%s%n",
+            n, hits / (double) times.length, indexNanos / 1e3 / times.length, scanNanos / 1e3 / times.length,
+            ok ? "" : " MISMATCH");
+
+        Score score = spacedScore(random, 60);
+        long loopFrom = score.start(10) + 30;
+        long loopTo = score.start(25) - 40;
+        long period = Sequencer.msToFrame(loopTo) - Sequencer.msToFrame(loopFrom);
+        AudioEngine engine = ToneGenerator.createOfflineEngine();
+        Sequencer sequencer = new Sequencer(score);
+        sequencer.setLoop(loopFrom, loopTo);
+        engine.startSequencer(sequencer);
+
+        byte[] block = new byte[2 * AudioEngine.BLOCK_FRAMES];
+        long[] onsets = new long[4096];
+        int onsetCount = 0;
+        long frame = 0;
+        long silentRun = Integer.MAX_VALUE;
+        long secondPass = Sequencer.msToFrame(loopTo);
+        long totalFrames = secondPass + 5 * period;
+        while (frame < totalFrames) {
+            int frames = 1 + random.nextInt(AudioEngine.BLOCK_FRAMES);
+            engine.render(block, frames);
+            for (int i = 0; i < frames; i++) {
+                boolean silent = block[2 * i] == 0 && block[2 * i + 1] == 0;
+                if (!silent && silentRun > 64 && onsetCount < onsets.length) {
+                    onsets[onsetCount++] = frame + i - 1;
+                }
+                silentRun = silent ? silentRun + 1 : 0;
+            }
+            frame += frames;
+        }
+
+        // compare the second pass with the third; the first starts at 0, not at A
+        int checked = 0, repeated = 0;
+        for (int i = 0; i < onsetCount; i++) {
+            long o = onsets[i];
+            if (o < secondPass || o >= secondPass + period) continue;
+            checked++;
+            for (int j = i + 1; j < onsetCount; j++) {
+                if (onsets[j] == o + period) {
+                    repeated++;
+                    break;
+                }
+            }
+        }
+        boolean loopOk = checked > 0 && repeated == checked && sequencer.jumpCount() >= 5;
+        System.out.printf("loop: %d jumps, %d of %d onsets repeated exactly one loop (%d frames) later%s%n",
+            sequencer.jumpCount(), repeated, checked, period, loopOk ? "" : " FAILED");
+        return ok && loopOk;
+    }
+
+    // Writes a long synthetic session (rows in note-off order, like files saved
+    // before recordings were sorted) and plays it through a headless engine
+    // from a ScoreStream, sampling the live heap as it goes. The same file is
+    // then loaded whole the old way for comparison.
+    static boolean streamCheck(int notes) throws Exception {
+        File file = File.createTempFile("stream-check", ".txt");
+        file.deleteOnExit();
+        long audioMs = RecordingBenchmark.writeSession(file, notes, 5);
+
+        long baseline = usedHeapAfterGc();
+        long t0 = System.nanoTime();
+        ScoreStream stream = ScoreStream.open(file);
+        Sequencer sequencer = new Sequencer(stream);
+        long firstNoteNanos = System.nanoTime() - t0;
+        AudioEngine engine = ToneGenerator.createOfflineEngine();
+        engine.startSequencer(sequencer);
+
+        byte[] block = new byte[2 * AudioEngine.BLOCK_FRAMES];
+        long blocks = 0;
+        long maxStreamHeap = 0;
+        long sampleEvery = Sequencer.msToFrame(audioMs) / AudioEngine.BLOCK_FRAMES / 20;
+        while (!sequencer.isFinished()) {
+            engine.render(block, AudioEngine.BLOCK_FRAMES);
+            if (++blocks % sampleEvery == 0) {
+                maxStreamHeap = Math.max(maxStreamHeap, usedHeapAfterGc() - baseline);
+            }
+        }
+        long streamNanos = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        List<String[]> loaded = RecordingBenchmark.splitRead(file);
+        Score score = Score.compile(loaded);
+        long loadNanos = System.nanoTime() - t0;
+        long loadedHeap = usedHeapAfterGc() - baseline;
+        sink = loaded.size() + score.size();
+
+        boolean ok = stream.notesRead() == notes && stream.lateNotes() == 0 && stream.error() == null;
+        System.out.printf("stream: %d notes, %.1f MB file, %.0f s of audio rendered in %.1f s%n",
+            notes, file.length() / 1e6, audioMs / 1000.0, streamNanos / 1e9);
+        System.out.printf("  streamed: first note ready after %.1f ms, peak live heap %.1f MB, %d late notes, %d underruns%n",
+            firstNoteNanos / 1e6, maxStreamHeap / 1e6, stream.lateNotes(), sequencer.underruns());
+        System.out.printf("  loaded:   whole file parsed after %.1f ms, live heap %.1f MB%s%n",
+            loadNanos / 1e6, loadedHeap / 1e6, ok ? "" : "  FAILED");
+        return ok;
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
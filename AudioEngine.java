@@ -0,0 +1,488 @@
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import javax.sound.sampled.*;
+
+// One render thread and one output line for the whole keyboard.
+// Note on/off calls are pushed onto a lock-free NoteEventQueue and drained in
+// order at the start of each block, then every active voice is summed into the
+// same mix buffer.
+// Timbre and sample data are resolved once per note-on, so the steady-state
+// render path does no map lookups and allocates nothing.
+//
+// Voices come from a fixed pool (-Dpiano.maxVoices, default 32). Every note-on
+// gets its own voice, so retriggers, release tails and several players on the
+// same key overlap instead of cutting each other off. Every voice has an owner
+// (LOCAL, REMOTE or PLAYBACK), and a note-off releases the oldest held voice on
+// that key with the same owner, so one player letting go of a key never cuts
+// another's note. When the pool is full a voice is stolen:
+// releasing voices go first, then the oldest or quietest one
+// (-Dpiano.voiceSteal=oldest|quietest).
+//
+// The metronome click is mixed into the same stream: it is rendered once up
+// front and started on the exact output frame of each beat, so tempo follows
+// the sample clock instead of a UI timer.
+//
+// A Sequencer can be attached to play a Score in the same way: each block is
+// split at the sequencer's event frames, so recorded chords start together on
+// one sample instead of wherever a polling thread happened to wake up.
+public class AudioEngine implements Runnable {
+    public static final float SAMPLE_RATE = 44100f;
+    static final int BLOCK_FRAMES = 256;
+
+    // voice owners; remote players share one, as the wire doesn't say who
+    // sent a note
+    public static final int LOCAL = 0;
+    public static final int REMOTE = 1;
+    public static final int PLAYBACK = 2;
+    private static final int OWNERS = 3;
+
+    private static final int NOTE_ON = 0;
+    private static final int NOTE_OFF = 1;
+    private static final int ALL_OFF = 2;
+
+    private static final int ATTACK = 0;
+    private static final int DECAY = 1;
+    private static final int SUSTAIN = 2;
+    private static final int RELEASE = 3;
+
+    // ADSR per timbre id: attack ms, decay ms, sustain level, release ms.
+    // Piano samples carry their own decay, so they only get short edges.
+    private static final float[] ATTACK_MS = {5f, 5f, 5f, 5f, 1f};
+    private static final float[] DECAY_MS = {60f, 60f, 60f, 60f, 1f};
+    private static final float[] SUSTAIN_LEVEL = {0.8f, 0.7f, 0.8f, 0.7f, 1f};
+    private static final float[] RELEASE_MS = {80f, 60f, 80f, 60f, 150f};
+
+    private final String[] keys;
+    private final double[] phaseIncrements;
+    private final Voice[] voices;
+    private final boolean stealQuietest;
+    private long noteCounter = 0;
+
+    // 100 ms of A5, same pitch as the old standalone beep
+    private static final float[] CLICK = buildClick(880.0, 100);
+
+    private final float[] mix = new float[BLOCK_FRAMES];
+    private final byte[] output = new byte[2 * BLOCK_FRAMES];
+    private final NoteEventQueue events = new NoteEventQueue(Integer.getInteger("piano.eventQueue", 1024));
+    private final NoteEventQueue.Handler eventHandler = this::applyEvent;
+    // Note-offs that found the queue full, per owner and key, and a missed
+    // all-off. The render thread applies them after the queue, so a full
+    // ring can drop a note but never leave one held.
+    private final AtomicIntegerArray missedOffs;
+    private volatile boolean missedAllOff = false;
+    private volatile boolean missedAny = false;
+
+    private volatile Sequencer sequencer;
+    private Sequencer playing; // the render thread's copy of sequencer
+
+    private volatile boolean running = false;
+    private volatile int activeVoiceCount = 0;
+    private Thread renderThread;
+
+    // metronome: bpm is set from the UI, the rest belongs to the render thread
+    private volatile double metronomeBpm = 0;
+    private boolean metronomeOn = false;
+    private double framesPerBeat;
+    private double nextBeatFrame;
+    private int clickPos = -1;
+    private volatile long framesRendered = 0;
+    private volatile long lastBeatFrame = 0;
+    private volatile long beatCount = 0;
+
+    private static final class Voice {
+        boolean active;
+        boolean held;
+        int key;
+        int timbre;
+        int owner;
+        double phase;
+        double increment;
+        ShortBuffer sample;
+        int sampleOffset;
+        int stage;
+        float level;
+        float releaseStep;
+        long startedAt;
+    }
+
+    public AudioEngine(String[] keys, double[] frequencies) {
+        this(keys, frequencies, Integer.getInteger("piano.maxVoices", 32));
+    }
+
+    public AudioEngine(String[] keys, double[] frequencies, int maxVoices) {
+        this.keys = keys;
+        this.missedOffs = new AtomicIntegerArray(OWNERS * keys.length);
+        this.phaseIncrements = new double[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            phaseIncrements[i] = 2.0 * Math.PI * frequencies[i] / SAMPLE_RATE;
+        }
+        this.voices = new Voice[Math.max(1, maxVoices)];
+        for (int i = 0; i < voices.length; i++) {
+            voices[i] = new Voice();
+        }
+        this.stealQuietest = "quietest".equalsIgnoreCase(System.getProperty("piano.voiceSteal"));
+    }
+
+    public void start() {
+        if (running) return;
+        running = true;
+        renderThread = new Thread(this, "audio-render");
+        renderThread.setDaemon(true);
+        renderThread.setPriority(Thread.MAX_PRIORITY);
+        renderThread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+    }
+
+    public void noteOn(int key, int timbre, int owner) {
+        ShortBuffer sample = timbre == ToneGenerator.PIANO ? ToneGenerator.getPianoSample(keys[key]) : null;
+        events.offer(NOTE_ON, key, timbre, owner, sample);
+    }
+
+    public void noteOff(int key, int owner) {
+        if (!events.offer(NOTE_OFF, key, 0, owner, null)) {
+            missedOffs.incrementAndGet(owner * keys.length + key);
+            missedAny = true;
+        }
+    }
+
+    public void allNotesOff() {
+        if (!events.offer(ALL_OFF, -1, 0, 0, null)) {
+            missedAllOff = true;
+            missedAny = true;
+        }
+    }
+
+    // Applies queued events without rendering; for offline callers that
+    // schedule more events at one instant than the queue holds.
+    void drainEvents() {
+        events.drain(eventHandler);
+        if (missedAny) applyMissedOffs();
+    }
+
+    NoteEventQueue eventQueue() {
+        return events;
+    }
+
+    // Plays the sequencer's score from the next block on, replacing (and
+    // silencing) any sequencer already playing. null just stops the current one.
+    public void startSequencer(Sequencer s) {
+        sequencer = s;
+    }
+
+    public Sequencer sequencer() {
+        return sequencer;
+    }
+
+    // 0 stops the metronome; the first beat of a start lands on the next rendered frame
+    public void setMetronomeBpm(double bpm) {
+        metronomeBpm = Math.max(0, bpm);
+    }
+
+    public long framesRendered() {
+        return framesRendered;
+    }
+
+    public long lastBeatFrame() {
+        return lastBeatFrame;
+    }
+
+    public long beatCount() {
+        return beatCount;
+    }
+
+    public int maxVoices() {
+        return voices.length;
+    }
+
+    // voices sounding after the last rendered block, including release tails
+    public int activeVoices() {
+        return activeVoiceCount;
+    }
+
+    @Override
+    public void run() {
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+        try (SourceDataLine line = AudioSystem.getSourceDataLine(format)) {
+            // a few blocks of headroom keeps latency low without underruns
+            line.open(format, output.length * 4);
+            line.start();
+            while (running) {
+                render(output, BLOCK_FRAMES);
+                line.write(output, 0, output.length);
+            }
+            line.drain();
+        } catch (Exception e) {
+            running = false;
+            e.printStackTrace();
+        }
+    }
+
+    // Renders frames of 16-bit little-endian mono PCM into dst.
+    // Also usable without an output line, e.g. for offline rendering.
+    void render(byte[] dst, int frames) {
+        events.drain(eventHandler);
+        if (missedAny) applyMissedOffs();
+
+        for (int i = 0; i < frames; i++) {
+            mix[i] = 0f;
+        }
+
+        mixMetronome(frames);
+
+        Sequencer s = sequencer;
+        if (s != playing) {
+            if (playing != null) playing.halt(this);
+            playing = s;
+        }
+        // voices are rendered in segments that end on sequencer events
+        int done = 0;
+        while (done < frames) {
+            int n = frames - done;
+            if (playing != null) {
+                n = playing.advance(this, n);
+            }
+            mixVoices(done, n);
+            done += n;
+        }
+
+        int active = 0;
+        for (Voice v : voices) {
+            if (v.active) active++;
+        }
+        activeVoiceCount = active;
+
+        for (int i = 0; i < frames; i++) {
+            float value = Math.max(-1f, Math.min(1f, mix[i]));
+            short sample = (short) (value * Short.MAX_VALUE);
+            dst[2 * i] = (byte) (sample & 0xff);
+            dst[2 * i + 1] = (byte) ((sample >> 8) & 0xff);
+        }
+    }
+
+    // Adds every active voice into mix[offset .. offset + frames).
+    private void mixVoices(int offset, int frames) {
+        double volume = ToneGenerator.getGlobalVolume();
+        boolean useTables = ToneGenerator.isWavetableOscillators();
+        int end = offset + frames;
+        for (Voice v : voices) {
+            if (!v.active) continue;
+
+            // envelope is advanced once per segment and ramped linearly across it
+            float startLevel = v.level;
+            float endLevel = advanceEnvelope(v, frames);
+            float gain = (float) (startLevel * volume);
+            float gainStep = (float) ((endLevel - startLevel) * volume / frames);
+
+            if (v.timbre == ToneGenerator.PIANO) {
+                mixPiano(v, offset, frames, gain, gainStep);
+            } else {
+                double phase = v.phase;
+                double increment = v.increment;
+                int timbre = v.timbre;
+                // sawtooth is a plain ramp, cheaper to compute than to look up
+                if (useTables && timbre != ToneGenerator.SAWTOOTH) {
+                    double[] table = Wavetable.table(timbre);
+                    for (int i = offset; i < end; i++) {
+                        mix[i] += (float) (Wavetable.read(table, phase) * gain);
+                        gain += gainStep;
+                        phase += increment;
+                        if (phase >= 2.0 * Math.PI) {
+                            phase -= 2.0 * Math.PI;
+                        }
+                    }
+                } else {
+                    for (int i = offset; i < end; i++) {
+                        mix[i] += (float) (ToneGenerator.generateWave(phase, timbre) * gain);
+                        gain += gainStep;
+                        phase += increment;
+                        if (phase >= 2.0 * Math.PI) {
+                            phase -= 2.0 * Math.PI;
+                        }
+                    }
+                }
+                v.phase = phase;
+            }
+
+            if (v.stage == RELEASE && v.level <= 0f) {
+                v.active = false;
+                v.sample = null;
+            }
+        }
+    }
+
+    private void mixMetronome(int frames) {
+        long start = framesRendered;
+        double bpm = metronomeBpm;
+        if (bpm <= 0) {
+            metronomeOn = false;
+        } else {
+            double fpb = SAMPLE_RATE * 60.0 / bpm;
+            if (!metronomeOn) {
+                metronomeOn = true;
+                nextBeatFrame = start;
+            } else if (fpb != framesPerBeat) {
+                // tempo change: keep the last beat, move the next one
+                nextBeatFrame = Math.max(start, lastBeatFrame + fpb);
+            }
+            framesPerBeat = fpb;
+        }
+
+        for (int i = 0; i < frames; i++) {
+            if (metronomeOn && start + i >= nextBeatFrame) {
+                clickPos = 0;
+                lastBeatFrame = start + i;
+                beatCount++;
+                nextBeatFrame += framesPerBeat;
+            }
+            if (clickPos >= 0) {
+                mix[i] += CLICK[clickPos++];
+                if (clickPos >= CLICK.length) clickPos = -1;
+            }
+        }
+        framesRendered = start + frames;
+    }
+
+    private static float[] buildClick(double freq, int ms) {
+        int length = (int) (SAMPLE_RATE * ms / 1000);
+        int fade = length / 10;
+        float[] click = new float[length];
+        for (int i = 0; i < length; i++) {
+            double amp = 0.8 * Math.min(1.0, (length - i) / (double) fade);
+            click[i] = (float) (Math.sin(2.0 * Math.PI * freq * i / SAMPLE_RATE) * amp);
+        }
+        return click;
+    }
+
+    private void mixPiano(Voice v, int offset, int frames, float gain, float gainStep) {
+        ShortBuffer sample = v.sample;
+        int start = v.sampleOffset;
+        if (sample == null || start >= sample.limit()) {
+            v.active = false; // sample finished
+            v.sample = null;
+            return;
+        }
+        int count = Math.min(frames, sample.limit() - start);
+        float scale = 1f / Short.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            mix[offset + i] += sample.get(start + i) * scale * gain;
+            gain += gainStep;
+        }
+        v.sampleOffset = start + count;
+    }
+
+    // Moves the voice's envelope forward by one segment and returns the new level.
+    private float advanceEnvelope(Voice v, int frames) {
+        int t = v.timbre;
+        float msPerBlock = frames * 1000f / SAMPLE_RATE;
+        switch (v.stage) {
+            case ATTACK:
+                v.level += msPerBlock / ATTACK_MS[t];
+                if (v.level >= 1f) {
+                    v.level = 1f;
+                    v.stage = DECAY;
+                }
+                break;
+            case DECAY:
+                v.level -= msPerBlock * (1f - SUSTAIN_LEVEL[t]) / DECAY_MS[t];
+                if (v.level <= SUSTAIN_LEVEL[t]) {
+                    v.level = SUSTAIN_LEVEL[t];
+                    v.stage = SUSTAIN;
+                }
+                break;
+            case SUSTAIN:
+                v.level = SUSTAIN_LEVEL[t];
+                break;
+            case RELEASE:
+            default:
+                v.level = Math.max(0f, v.level - v.releaseStep * frames);
+                break;
+        }
+        return v.level;
+    }
+
+    private void release(Voice v) {
+        v.held = false;
+        v.stage = RELEASE;
+        v.releaseStep = Math.max(v.level, 1e-3f) / (RELEASE_MS[v.timbre] * SAMPLE_RATE / 1000f);
+    }
+
+    private void startVoice(int key, int timbre, int owner, ShortBuffer sample) {
+        Voice v = findFreeVoice();
+        v.active = true;
+        v.held = true;
+        v.key = key;
+        v.timbre = timbre;
+        v.owner = owner;
+        v.phase = 0.0;
+        v.increment = phaseIncrements[key];
+        v.sample = sample;
+        v.sampleOffset = 0;
+        v.stage = ATTACK;
+        v.level = 0f;
+        v.startedAt = noteCounter++;
+    }
+
+    private Voice findFreeVoice() {
+        Voice releasing = null;
+        Voice victim = null;
+        for (Voice v : voices) {
+            if (!v.active) return v;
+            if (!v.held) {
+                if (releasing == null || v.level < releasing.level) releasing = v;
+            } else if (victim == null
+                    || (stealQuietest ? v.level < victim.level : v.startedAt < victim.startedAt)) {
+                victim = v;
+            }
+        }
+        return releasing != null ? releasing : victim;
+    }
+
+    private void applyMissedOffs() {
+        missedAny = false; // before reading, so a miss from now on is seen next block
+        if (missedAllOff) {
+            missedAllOff = false;
+            applyEvent(ALL_OFF, -1, 0, 0, null);
+        }
+        for (int i = 0; i < missedOffs.length(); i++) {
+            for (int n = missedOffs.getAndSet(i, 0); n > 0; n--) {
+                applyEvent(NOTE_OFF, i % keys.length, 0, i / keys.length, null);
+            }
+        }
+    }
+
+    // Sequencer events, applied directly on the render thread between segments.
+    void noteOnNow(int key, int timbre, ShortBuffer sample) {
+        startVoice(key, timbre, PLAYBACK, sample);
+    }
+
+    void noteOffNow(int key) {
+        applyEvent(NOTE_OFF, key, 0, PLAYBACK, null);
+    }
+
+    private void applyEvent(int type, int key, int timbre, int owner, ShortBuffer sample) {
+        switch (type) {
+            case NOTE_ON:
+                startVoice(key, timbre, owner, sample);
+                break;
+            case NOTE_OFF:
+                Voice oldest = null;
+                for (Voice v : voices) {
+                    if (v.active && v.held && v.key == key && v.owner == owner
+                            && (oldest == null || v.startedAt < oldest.startedAt)) {
+                        oldest = v;
+                    }
+                }
+                if (oldest != null) release(oldest);
+                break;
+            case ALL_OFF:
+            default:
+                for (Voice v : voices) {
+                    if (v.active && v.held) release(v);
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Headless bounce of every recording in a directory, for audio previews.
+// Files are rendered on a work-stealing pool; all workers share the one
+// decoded piano sample set in ToneGenerator, loaded once up front. A semaphore
+// bounds how many recordings are parsed and rendering at the same time, so
+// memory doesn't grow with the size of the directory.
+//
+// Usage: java BatchRender <recordings dir> [output dir] [max in flight]
+public class BatchRender {
+
+    private static class FileResult {
+        final String name;
+        final OfflineRenderer.Result result;
+        final String error;
+
+        FileResult(String name, OfflineRenderer.Result result, String error) {
+            this.name = name;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java BatchRender <recordings dir> [output dir] [max in flight]");
+            System.exit(2);
+        }
+        File inDir = new File(args[0]);
+        File outDir = new File(args.length > 1 ? args[1] : args[0]);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : parallelism * 2;
+
+        File[] files = inDir.listFiles((dir, name) -> name.endsWith(".txt") || name.endsWith(BinaryRecording.EXTENSION)
+            || name.endsWith(".mid"));
+        if (files == null || files.length == 0) {
+            System.err.println("No recordings found in " + inDir);
+            System.exit(1);
+        }
+        Arrays.sort(files);
+        outDir.mkdirs();
+
+        long loadStart = System.nanoTime();
+        ToneGenerator.loadPianoSamples();
+        long loadMs = (System.nanoTime() - loadStart) / 1_000_000;
+
+        ExecutorService pool = Executors.newWorkStealingPool(parallelism);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<Future<FileResult>> futures = new ArrayList<>();
+
+        long t0 = System.nanoTime();
+        for (File file : files) {
+            inFlight.acquire(); // submission waits while too many renders are open
+            futures.add(pool.submit(() -> {
+                try {
+                    File out = new File(outDir, file.getName().replaceFirst("\\.(txt|prec|mid)$", ".wav"));
+                    return new FileResult(file.getName(),
+                        OfflineRenderer.render(RecordingReader.read(file), out), null);
+                } catch (Exception e) {
+                    return new FileResult(file.getName(), null, e.toString());
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        }
+
+        List<FileResult> results = new ArrayList<>();
+        for (Future<FileResult> f : futures) {
+            results.add(f.get());
+        }
+        long wallNanos = System.nanoTime() - t0;
+        pool.shutdown();
+
+        double audioSeconds = 0;
+        int failed = 0;
+        for (FileResult r : results) {
+            if (r.result == null) {
+                failed++;
+                System.out.printf("  %-40s FAILED %s%n", r.name, r.error);
+            } else {
+                audioSeconds += r.result.audioSeconds();
+                System.out.printf("  %-40s %8.1f s audio %8.0f ms %7.1fx%n",
+                    r.name, r.result.audioSeconds(), r.result.wallNanos / 1e6, r.result.speedup());
+            }
+        }
+        double wallSeconds = wallNanos / 1e9;
+        System.out.printf("Rendered %d of %d files in %.2f s on %d threads (max %d in flight, samples loaded in %d ms)%n",
+            results.size() - failed, results.size(), wallSeconds, parallelism, maxInFlight, loadMs);
+        System.out.printf("Throughput: %.1f files/s, %.1f s of audio per wall-clock second%n",
+            (results.size() - failed) / wallSeconds, audioSeconds / wallSeconds);
+    }
+}
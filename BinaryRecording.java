@@ -0,0 +1,417 @@
+import java.io.*;
+import java.util.zip.CRC32;
+
+// Compact binary recording format. It holds the same rows as the text format,
+// in the same order, so the two convert into each other without loss:
+//
+//   "PNOR", version byte
+//   note dictionary:   count, then each name as a length byte and ASCII
+//   timbre dictionary: the same
+//   blocks:            row count, payload length, payload, CRC32 of the payload
+//   a row count of 0 ends the file
+//
+// A row is three varints: its start minus the previous row's start (zigzag
+// coded, so out-of-order rows still fit), end minus start, and
+// note * timbres + timbre indexing the dictionaries. Deltas restart at 0 in
+// every block, so each block decodes on its own and a damaged one can be
+// skipped. A typical row takes 4-5 bytes against 20-25 as text.
+//
+// Files carry the whole NOTES and TIMBRES tables and are read back by name,
+// so they stay valid if those tables change.
+public class BinaryRecording {
+    static final byte[] MAGIC = {'P', 'N', 'O', 'R'};
+    static final int VERSION = 1;
+    public static final String EXTENSION = ".prec";
+    private static final int BLOCK_ROWS = 4096;
+    private static final int MAX_ROW_BYTES = 30; // three 10-byte varints
+
+    public static boolean isBinary(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return hasMagic(in);
+        }
+    }
+
+    // Consumes up to four bytes of in.
+    static boolean hasMagic(InputStream in) throws IOException {
+        for (byte b : MAGIC) {
+            if (in.read() != b) return false;
+        }
+        return true;
+    }
+
+    // Writes rows in the order given; the text format's start order keeps the
+    // deltas small.
+    public static final class Writer implements Closeable {
+        private final OutputStream out;
+        private final byte[] payload = new byte[BLOCK_ROWS * MAX_ROW_BYTES];
+        private final CRC32 crc = new CRC32();
+        private int length = 0;
+        private int rows = 0;
+        private long previousStart = 0;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new BufferedOutputStream(out, 64 * 1024);
+            this.out.write(MAGIC);
+            this.out.write(VERSION);
+            writeDictionary(ToneGenerator.NOTES);
+            writeDictionary(ToneGenerator.TIMBRES);
+        }
+
+        public Writer(File file) throws IOException {
+            this(new FileOutputStream(file));
+        }
+
+        private void writeDictionary(String[] names) throws IOException {
+            out.write(names.length);
+            for (String name : names) {
+                byte[] ascii = name.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+                out.write(ascii.length);
+                out.write(ascii);
+            }
+        }
+
+        // note and timbre are ToneGenerator ids, times ms from the start
+        public void write(int note, long start, long end, int timbre) throws IOException {
+            if (note < 0 || note >= ToneGenerator.NOTES.length || timbre < 0 || timbre >= ToneGenerator.TIMBRES.length) {
+                throw new IllegalArgumentException("Unknown note or timbre id: " + note + ", " + timbre);
+            }
+            if (start < 0 || end < start) {
+                throw new IllegalArgumentException("Bad note times: " + start + " to " + end);
+            }
+            long delta = start - previousStart;
+            length = putVarint(payload, length, (delta << 1) ^ (delta >> 63));
+            length = putVarint(payload, length, end - start);
+            length = putVarint(payload, length, (long) note * ToneGenerator.TIMBRES.length + timbre);
+            previousStart = start;
+            if (++rows == BLOCK_ROWS) flushBlock();
+        }
+
+        public void write(RecordingRows rows) throws IOException {
+            while (rows.next()) {
+                write(rows.note(), rows.start(), rows.end(), rows.timbre());
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (rows == 0) return;
+            crc.reset();
+            crc.update(payload, 0, length);
+            writeVarint(out, rows);
+            writeVarint(out, length);
+            out.write(payload, 0, length);
+            long sum = crc.getValue();
+            out.write((int) (sum >>> 24));
+            out.write((int) (sum >>> 16));
+            out.write((int) (sum >>> 8));
+            out.write((int) sum);
+            rows = 0;
+            length = 0;
+            previousStart = 0;
+        }
+
+        // Ends the current block early and pushes everything written so far to
+        // the underlying stream, so a reader or a crash sees whole blocks.
+        public void flush() throws IOException {
+            flushBlock();
+            out.flush();
+        }
+
+        // Writes the end marker and flushes, leaving the stream open.
+        public void end() throws IOException {
+            flushBlock();
+            writeVarint(out, 0);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            end();
+            out.close();
+        }
+    }
+
+    // Reads the rows back one at a time. A failed checksum, a name this build
+    // doesn't know or a truncated file is a RecordingFormatException naming the
+    // block; in lenient mode the damaged rows are counted and skipped instead.
+    public static final class Reader implements RecordingRows {
+        private final InputStream in;
+        private final boolean lenient;
+        private final int[] noteIds;   // dictionary index -> ToneGenerator id, or -1
+        private final int[] timbreIds;
+        private final CRC32 crc = new CRC32();
+        private byte[] payload = new byte[BLOCK_ROWS * MAX_ROW_BYTES];
+        private int pos;
+        private int payloadEnd;
+        private int rowsLeft = 0;
+        private long previousStart;
+        private long block = 0;
+        private long offset = 0;
+        private boolean ended = false;
+        private long skipped = 0;
+        private RecordingFormatException firstError;
+
+        private int note;
+        private int timbre;
+        private long start;
+        private long end;
+
+        public Reader(InputStream in, boolean lenient) throws IOException {
+            this.in = new BufferedInputStream(in, 64 * 1024);
+            this.lenient = lenient;
+            if (!hasMagic(this.in)) throw new RecordingFormatException("not a binary recording");
+            int version = readByte();
+            if (version != VERSION) throw new RecordingFormatException("unsupported version " + version);
+            offset = MAGIC.length + 1;
+            noteIds = readDictionary(ToneGenerator.NOTES);
+            timbreIds = readDictionary(ToneGenerator.TIMBRES);
+            if (timbreIds.length == 0) throw new RecordingFormatException("empty timbre dictionary");
+        }
+
+        private int[] readDictionary(String[] known) throws IOException {
+            int[] ids = new int[readByte()];
+            for (int i = 0; i < ids.length; i++) {
+                byte[] ascii = new byte[readByte()];
+                readFully(ascii, ascii.length);
+                String name = new String(ascii, java.nio.charset.StandardCharsets.US_ASCII);
+                ids[i] = -1;
+                for (int id = 0; id < known.length; id++) {
+                    if (known[id].equals(name)) ids[i] = id;
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                if (rowsLeft == 0 && !nextBlock()) return false;
+                try {
+                    decodeRow();
+                    return true;
+                } catch (RecordingFormatException e) {
+                    skip(e, 1);
+                }
+            }
+        }
+
+        private void decodeRow() throws RecordingFormatException {
+            rowsLeft--;
+            long zigzag = varint();
+            long length = varint();
+            long key = varint();
+            start = previousStart + ((zigzag >>> 1) ^ -(zigzag & 1));
+            previousStart = start;
+            // varints are 64 bits: a damaged one can come out negative
+            if (length < 0 || key < 0) throw bad("row out of range");
+            end = start + length;
+            if (start < 0 || end < start) throw bad("note times out of range");
+            long noteIndex = key / timbreIds.length;
+            if (noteIndex >= noteIds.length) throw bad("note index " + noteIndex + " not in the dictionary");
+            note = noteIds[(int) noteIndex];
+            timbre = timbreIds[(int) (key % timbreIds.length)];
+            if (note < 0 || timbre < 0) throw bad("unknown note or timbre");
+        }
+
+        private long varint() throws RecordingFormatException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos == payloadEnd) throw bad("row runs past the end of the block");
+                byte b = payload[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            throw bad("varint too long");
+        }
+
+        // Loads and checks the next block; false after the end marker.
+        private boolean nextBlock() throws IOException {
+            while (!ended) {
+                block++;
+                long rows;
+                long length;
+                try {
+                    rows = readVarint();
+                    if (rows == 0) {
+                        ended = true;
+                        return false;
+                    }
+                    length = readVarint();
+                    if (length > rows * MAX_ROW_BYTES || rows > BLOCK_ROWS) {
+                        // nothing to resync on past a damaged block header
+                        ended = true;
+                        skip(bad("block header out of range"), 0);
+                        return false;
+                    }
+                    if (length > payload.length) payload = new byte[(int) length];
+                    readFully(payload, (int) length);
+                    long expected = 0;
+                    for (int i = 0; i < 4; i++) {
+                        expected = (expected << 8) | readByte();
+                    }
+                    crc.reset();
+                    crc.update(payload, 0, (int) length);
+                    if (crc.getValue() != expected) {
+                        skip(bad("checksum mismatch"), rows);
+                        continue;
+                    }
+                } catch (EOFException e) {
+                    // a file cut off mid-write keeps the blocks before the cut
+                    ended = true;
+                    skip(bad("file ends before its end marker"), 0);
+                    return false;
+                }
+                pos = 0;
+                payloadEnd = (int) length;
+                rowsLeft = (int) rows;
+                previousStart = 0;
+                return true;
+            }
+            return false;
+        }
+
+        private RecordingFormatException bad(String detail) {
+            return new RecordingFormatException("block " + block + ": " + detail);
+        }
+
+        private void skip(RecordingFormatException e, long rows) throws RecordingFormatException {
+            if (!lenient) throw e;
+            if (firstError == null) firstError = e;
+            skipped += rows;
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            offset++;
+            return b;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if (b < 0x80) return value;
+            }
+            throw bad("varint too long");
+        }
+
+        private void readFully(byte[] dst, int length) throws IOException {
+            int at = 0;
+            while (at < length) {
+                int n = in.read(dst, at, length - at);
+                if (n < 0) throw new EOFException();
+                at += n;
+            }
+            offset += length;
+        }
+
+        @Override
+        public int note() {
+            return note;
+        }
+
+        @Override
+        public int timbre() {
+            return timbre;
+        }
+
+        @Override
+        public long start() {
+            return start;
+        }
+
+        @Override
+        public long end() {
+            return end;
+        }
+
+        // bytes of input consumed up to the end of the current block
+        @Override
+        public long bytesRead() {
+            return offset;
+        }
+
+        // rows skipped in lenient mode, and the first reason
+        public long skipped() {
+            return skipped;
+        }
+
+        public RecordingFormatException firstError() {
+            return firstError;
+        }
+
+        @Override
+        public void reportSkipped(File file) {
+            if (firstError != null) {
+                System.err.println(file.getName() + ", " + firstError.getMessage()
+                    + (skipped > 0 ? ": skipped " + skipped + " rows" : ""));
+            }
+        }
+    }
+
+    static int putVarint(byte[] dst, int at, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[at++] = (byte) value;
+        return at;
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static void write(Score score, File file) throws IOException {
+        try (Writer out = new Writer(file)) {
+            for (int i = 0; i < score.size(); i++) {
+                out.write(score.note(i), score.start(i), score.end(i), score.timbre(i));
+            }
+        }
+    }
+
+    // Converts a text recording to the binary format, row for row.
+    public static void toBinary(File text, File binary) throws IOException {
+        try (InputStream in = new FileInputStream(text);
+             Writer out = new Writer(binary)) {
+            out.write(new RecordingReader(in, false));
+        }
+    }
+
+    // Converts a binary recording back to the text format saveRecording writes.
+    public static void toText(File binary, File text) throws IOException {
+        try (InputStream in = new FileInputStream(binary);
+             PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(text), 64 * 1024))) {
+            Reader rows = new Reader(in, false);
+            out.println("note,startTime,endTime,timbre");
+            while (rows.next()) {
+                out.println(ToneGenerator.NOTES[rows.note()] + "," + rows.start() + "," + rows.end()
+                    + "," + ToneGenerator.TIMBRES[rows.timbre()]);
+            }
+            if (out.checkError()) throw new IOException("Failed to write " + text);
+        }
+    }
+
+    // java BinaryRecording <in> <out>: converts a text recording to binary, or
+    // a binary one back to text.
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java BinaryRecording <in> <out>");
+            System.exit(2);
+        }
+        File in = new File(args[0]);
+        File out = new File(args[1]);
+        if (isBinary(in)) {
+            toText(in, out);
+        } else {
+            toBinary(in, out);
+        }
+        System.out.println(in.getName() + " (" + in.length() + " bytes) -> "
+            + out.getName() + " (" + out.length() + " bytes)");
+    }
+}
@@ -15,10 +15,7 @@ public class KeyFactory {
             int x, int y, int width, int height,
             Map<String, JButton> keyButtons,
             Map<String, Integer> pressCount,
-            List<String[]> rawEvents,
-            Map<String, Long> activeNotes,
-            Supplier<Long> recordingStartTime,
-            Supplier<Boolean> isRecording,
+            Supplier<Recorder> recorder,
             Supplier<String> timbre,
             Consumer<String> sendMessage,
             Consumer<String> stopTone,
@@ -40,17 +37,14 @@ public class KeyFactory {
                         : List.of(note);
 
                 for (String n : notesToPlay) {
-                    int count = pressCount.getOrDefault(n, 0);
-                    if (count == 0) {
-                        playTone.accept(n);
-                    }
-                    pressCount.put(n, count + 1);
+                    // every press gets its own voice, released by the matching mouseReleased
+                    playTone.accept(n);
+                    pressCount.merge(n, 1, Integer::sum);
                     sendMessage.accept("NOTE_ON," + n + "," + timbre.get());
 
-                    if (isRecording.get()) {
-                        long offset = System.currentTimeMillis() - recordingStartTime.get();
-                        rawEvents.add(new String[]{"NOTE_ON", n, String.valueOf(offset), timbre.get()});
-                        activeNotes.put(n, offset);
+                    Recorder r = recorder.get();
+                    if (r != null) {
+                        r.noteOn(Recorder.LOCAL, n, timbre.get());
                     }
 
                     JButton btn = keyButtons.get(n);
@@ -68,20 +62,19 @@ public class KeyFactory {
                         : List.of(note);
 
                 for (String n : notesToStop) {
+                    stopTone.accept(n);
                     int count = pressCount.getOrDefault(n, 1) - 1;
                     if (count <= 0) {
                         pressCount.remove(n);
-                        stopTone.accept(n);
                     } else {
                         pressCount.put(n, count);
                     }
 
                     sendMessage.accept("NOTE_OFF," + n + "," + timbre.get());
 
-                    if (isRecording.get() && activeNotes.containsKey(n)) {
-                        long offset = System.currentTimeMillis() - recordingStartTime.get();
-                        rawEvents.add(new String[]{"NOTE_OFF", n, String.valueOf(offset), timbre.get()});
-                        activeNotes.remove(n);
+                    Recorder r = recorder.get();
+                    if (r != null) {
+                        r.noteOff(Recorder.LOCAL, n);
                     }
 
                     JButton btn = keyButtons.get(n);
@@ -12,7 +12,8 @@ public class KeyboardManager {
     private final int maxOctave;
     private final JCheckBox autoChordCheck;
     private final JComboBox<String> chordTypeSelector;
-    private final Map<String, Long> activeNotes = new java.util.HashMap<>();
+    // notes this keyboard itself is holding, so every press is paired with exactly one release
+    private final java.util.Set<String> heldNotes = new java.util.HashSet<>();
 
     // Mapping keyboard keys to note names
     private static final Map<Integer, String> KEY_TO_NOTE = Map.ofEntries(
@@ -77,18 +78,15 @@ public class KeyboardManager {
     
                 double freq = PianoApp.WHITE_KEYS.getOrDefault(note, PianoApp.BLACK_KEYS.getOrDefault(note, -1.0));
                 if (freq > 0) {
-                    if (!PianoApp.pressCount.containsKey(note)) {
+                    if (heldNotes.add(note)) {
                         ToneGenerator.playToneContinuous(freq, note, PianoApp.TIMBRE);
-                        PianoApp.pressCount.put(note, 1);
+                        PianoApp.pressCount.merge(note, 1, Integer::sum);
     
                         PianoApp.sendMessage("NOTE_ON," + note + "," + PianoApp.TIMBRE);
     
-                        if (PianoApp.isRecording) {
-                            long offset = System.currentTimeMillis() - PianoApp.recordingStartTime;
-                            synchronized (PianoApp.rawEvents) {
-                                PianoApp.rawEvents.add(new String[]{"NOTE_ON", note, String.valueOf(offset), PianoApp.TIMBRE});
-                            }
-                            activeNotes.put(note, offset);
+                        Recorder recorder = PianoApp.recorder;
+                        if (recorder != null) {
+                            recorder.noteOn(Recorder.LOCAL, note, PianoApp.TIMBRE);
                         }
     
                         JButton keyBtn = PianoApp.keyButtons.get(note);
@@ -126,11 +124,11 @@ public class KeyboardManager {
             }
 
             for (String note : notesToStop) {
-                if (PianoApp.pressCount.containsKey(note)) {
+                if (heldNotes.remove(note)) {
+                    ToneGenerator.stopTone(note);
                     int count = PianoApp.pressCount.getOrDefault(note, 1) - 1;
                     if (count <= 0) {
                         PianoApp.pressCount.remove(note);
-                        ToneGenerator.stopTone(note);
                     } else {
                         PianoApp.pressCount.put(note, count);
                     }
@@ -138,12 +136,9 @@ public class KeyboardManager {
                     // Send network message
                     PianoApp.sendMessage("NOTE_OFF," + note + "," + PianoApp.TIMBRE);
                 
-                    if (PianoApp.isRecording && activeNotes.containsKey(note)) {
-                        long offset = System.currentTimeMillis() - PianoApp.recordingStartTime;
-                        synchronized (PianoApp.rawEvents) {
-                            PianoApp.rawEvents.add(new String[]{"NOTE_OFF", note, String.valueOf(offset), PianoApp.TIMBRE});
-                        }
-                        activeNotes.remove(note);
+                    Recorder recorder = PianoApp.recorder;
+                    if (recorder != null) {
+                        recorder.noteOff(Recorder.LOCAL, note);
                     }
                 
                     JButton keyBtn = PianoApp.keyButtons.get(note);
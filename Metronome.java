@@ -10,10 +10,8 @@ public class Metronome {
     private final JSpinner bpmSpinner;
     private final JButton startStopBtn;
     private final PendulumPanel pendulum;
+    // only animates the pendulum; beats themselves are timed by the audio engine
     private Timer driver;
-    private long nextBeatTime;
-    private int intervalMs;
-    private int direction = 1; 
 
     public Metronome() {
         panel = new JPanel(new BorderLayout());
@@ -28,9 +26,9 @@ public class Metronome {
         panel.add(ctrl, BorderLayout.NORTH);
 
         bpmSpinner.addChangeListener(e -> {
-            int bpm = (Integer) bpmSpinner.getValue();
-            intervalMs = 60000 / bpm;
-            nextBeatTime = System.currentTimeMillis() + intervalMs;
+            if (driver != null) {
+                ToneGenerator.setMetronomeBpm((Integer) bpmSpinner.getValue());
+            }
         });
 
         pendulum = new PendulumPanel(200, 260, bpmSpinner);
@@ -45,20 +43,13 @@ public class Metronome {
 
     private void toggle() {
         if (driver == null) {
-            direction    = 1;
-            int bpm      = (Integer) bpmSpinner.getValue();
-            intervalMs   = 60000 / bpm;
-            nextBeatTime = System.currentTimeMillis();
-            tick();
-
-            driver = new Timer(10, ev -> {
-                long now = System.currentTimeMillis();
-                if (now >= nextBeatTime) tick();
-                pendulum.update(now, nextBeatTime, intervalMs, direction, (Integer)bpmSpinner.getValue());
-            });
+            ToneGenerator.setMetronomeBpm((Integer) bpmSpinner.getValue());
+
+            driver = new Timer(10, ev -> updatePendulum());
             driver.start();
             startStopBtn.setText("Stop");
         } else {
+            ToneGenerator.setMetronomeBpm(0);
             driver.stop();
             driver = null;
             pendulum.reset();
@@ -66,10 +57,20 @@ public class Metronome {
         }
     }
 
-    private void tick() {
-        new Thread(ToneGenerator::beepSound).start();
-        nextBeatTime += intervalMs;
-        direction = -direction;
+    // Follows the engine's sample clock, so the swing lines up with the clicks
+    private void updatePendulum() {
+        AudioEngine engine = ToneGenerator.getEngine();
+        if (engine == null) return;
+        int bpm = (Integer) bpmSpinner.getValue();
+        long intervalMs = 60000 / bpm;
+        long now = framesToMs(engine.framesRendered());
+        long lastBeat = framesToMs(engine.lastBeatFrame());
+        int direction = engine.beatCount() % 2 == 0 ? 1 : -1;
+        pendulum.update(now, lastBeat + intervalMs, intervalMs, direction, bpm);
+    }
+
+    private static long framesToMs(long frames) {
+        return (long) (frames * 1000 / AudioEngine.SAMPLE_RATE);
     }
 
     private static class PendulumPanel extends JPanel {
@@ -0,0 +1,348 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+// Standard MIDI File import and export.
+//
+// Export writes a type 0 file at 500 ticks per quarter and 120 bpm, so one
+// tick is one millisecond and note times come back exactly. Each timbre has
+// its own channel and a General MIDI program close to it, which import maps
+// back to the same timbre. MIDI can't tell two overlapping notes of the same
+// key and channel apart, so those come back cut at the second's start;
+// recordings never have them, as a key must be released to be played again.
+//
+// Import reads type 0 and type 1 files. Each track is read through its own
+// small buffer straight from the file, and a min-heap on the tracks' next
+// event ticks merges them into one time-ordered stream. Tempo changes take
+// effect where they fall, and notes come out already in start order, with
+// nothing to sort. Keys outside C4..C7 are moved by octaves into range, and
+// the drum channel is skipped.
+public class MidiFile {
+    private static final int TICKS_PER_QUARTER = 500;
+    private static final int DEFAULT_TEMPO = 500_000; // µs per quarter, 120 bpm
+    private static final int DRUM_CHANNEL = 9;
+    private static final int LOWEST_KEY = 60;         // C4, note id 0
+    private static final int VELOCITY = 100;
+    // export program per timbre id: flute, square lead, ocarina, saw lead, piano
+    private static final int[] PROGRAM = {73, 80, 79, 81, 0};
+
+    public static boolean isMidi(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] id = new byte[4];
+            return in.readNBytes(id, 0, 4) == 4 && "MThd".equals(new String(id, "US-ASCII"));
+        }
+    }
+
+    // Timbre for a General MIDI program, by instrument family.
+    static int timbreFor(int program) {
+        if (program < 16) return ToneGenerator.PIANO;       // pianos, chromatic percussion
+        if (program < 24) return ToneGenerator.SQUARE;      // organs
+        if (program >= 40 && program < 72) return ToneGenerator.SAWTOOTH; // strings, brass, reeds
+        if (program >= 72 && program < 79) return ToneGenerator.SINE;     // flutes, pipes
+        if (program == 80) return ToneGenerator.SQUARE;
+        if (program == 81) return ToneGenerator.SAWTOOTH;
+        return ToneGenerator.TRIANGLE;
+    }
+
+    public static void write(Score score, File file) throws IOException {
+        int n = score.size();
+        if (n >= (1 << 23)) throw new IllegalArgumentException("Score too long for export: " + n + " notes");
+
+        // tick << 25 | phase << 23 | row. On one tick, offs of earlier notes
+        // come first so a note ending and restarting there retriggers, then
+        // ons, then the offs of notes that last no time at all
+        long[] events = new long[2 * n];
+        for (int i = 0; i < n; i++) {
+            events[2 * i] = (score.start(i) << 25) | (1L << 23) | i;
+            long offPhase = score.end(i) == score.start(i) ? 2 : 0;
+            events[2 * i + 1] = (score.end(i) << 25) | (offPhase << 23) | i;
+        }
+        Arrays.sort(events);
+
+        ByteArrayOutputStream track = new ByteArrayOutputStream(8 * n + 64);
+        track.write(new byte[]{0, (byte) 0xFF, 0x51, 3,
+            (byte) (DEFAULT_TEMPO >> 16), (byte) (DEFAULT_TEMPO >> 8), (byte) DEFAULT_TEMPO});
+        for (int timbre = 0; timbre < PROGRAM.length; timbre++) {
+            track.write(new byte[]{0, (byte) (0xC0 | timbre), (byte) PROGRAM[timbre]});
+        }
+        long tick = 0;
+        int status = -1;
+        for (long event : events) {
+            int row = (int) (event & ((1 << 23) - 1));
+            boolean on = ((event >>> 23) & 3) == 1;
+            long at = event >>> 25;
+            writeVarLen(track, at - tick);
+            tick = at;
+            // note-on at velocity 0 for offs, so running status covers both
+            int channelStatus = 0x90 | score.timbre(row);
+            if (channelStatus != status) {
+                track.write(channelStatus);
+                status = channelStatus;
+            }
+            track.write(LOWEST_KEY + score.note(row));
+            track.write(on ? VELOCITY : 0);
+        }
+        track.write(new byte[]{0, (byte) 0xFF, 0x2F, 0});
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeBytes("MThd");
+            out.writeInt(6);
+            out.writeShort(0);
+            out.writeShort(1);
+            out.writeShort(TICKS_PER_QUARTER);
+            out.writeBytes("MTrk");
+            out.writeInt(track.size());
+            track.writeTo(out);
+        }
+    }
+
+    private static void writeVarLen(OutputStream out, long value) throws IOException {
+        if (value >= (1L << 28)) throw new IllegalArgumentException("Gap too long for MIDI: " + value + " ticks");
+        int shift = 21;
+        while (shift > 0 && (value >>> shift) == 0) shift -= 7;
+        for (; shift > 0; shift -= 7) {
+            out.write((int) (((value >>> shift) & 0x7F) | 0x80));
+        }
+        out.write((int) (value & 0x7F));
+    }
+
+    // One track chunk, read forward through a small buffer of its own.
+    private static final class Track {
+        final FileChannel channel;
+        final int index;
+        final long end;
+        final ByteBuffer buf = ByteBuffer.allocate(8192);
+        long pos;        // file offset of the next refill
+        long tick;       // absolute tick of the event about to be read
+        int status = 0;  // running status
+
+        Track(FileChannel channel, int index, long from, long length) {
+            this.channel = channel;
+            this.index = index;
+            this.pos = from;
+            this.end = from + length;
+            buf.limit(0);
+        }
+
+        int read() throws IOException {
+            if (!buf.hasRemaining()) {
+                if (pos >= end) throw new RecordingFormatException("track " + index + " ends inside an event");
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - pos));
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, pos + buf.position()) < 0) throw new EOFException();
+                }
+                pos += buf.limit();
+                buf.flip();
+            }
+            return buf.get() & 0xFF;
+        }
+
+        void skip(long n) throws IOException {
+            int inBuffer = (int) Math.min(n, buf.remaining());
+            buf.position(buf.position() + inBuffer);
+            pos += n - inBuffer;
+            if (pos > end) throw new RecordingFormatException("track " + index + " ends inside an event");
+        }
+
+        long readVarLen() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = read();
+                value = (value << 7) | (b & 0x7F);
+                if (b < 0x80) return value;
+            }
+            throw new RecordingFormatException("track " + index + ": bad variable-length number");
+        }
+
+        // Reads the next event's delta time; false at the end of the track.
+        boolean advance() throws IOException {
+            if (!buf.hasRemaining() && pos >= end) return false;
+            tick += readVarLen();
+            return true;
+        }
+    }
+
+    // Notes as they are read, in start order. A row's end is filled in when
+    // its note-off arrives.
+    private static final class Notes {
+        int[] notes = new int[1024];
+        int[] timbres = new int[1024];
+        long[] starts = new long[1024];
+        long[] ends = new long[1024];
+        int size;
+        final int[] open = new int[16 * 128]; // row sounding per channel and key, or -1
+        final int[] program = new int[16];
+        long moved;
+        long drums;
+
+        Notes() {
+            Arrays.fill(open, -1);
+        }
+
+        void on(int channel, int key, long ms) {
+            if (channel == DRUM_CHANNEL) {
+                drums++;
+                return;
+            }
+            off(channel, key, ms); // a repeated key without an off ends the first
+            int note = key - LOWEST_KEY;
+            if (note < 0 || note >= ToneGenerator.NOTES.length) {
+                moved++;
+                while (note < 0) note += 12;
+                while (note >= ToneGenerator.NOTES.length) note -= 12;
+            }
+            if (size == notes.length) {
+                int n = size * 2;
+                notes = Arrays.copyOf(notes, n);
+                timbres = Arrays.copyOf(timbres, n);
+                starts = Arrays.copyOf(starts, n);
+                ends = Arrays.copyOf(ends, n);
+            }
+            notes[size] = note;
+            timbres[size] = timbreFor(program[channel]);
+            starts[size] = ms;
+            ends[size] = ms;
+            open[channel * 128 + key] = size++;
+        }
+
+        void off(int channel, int key, long ms) {
+            int row = open[channel * 128 + key];
+            if (row >= 0) {
+                ends[row] = ms;
+                open[channel * 128 + key] = -1;
+            }
+        }
+
+        // notes never switched off end with the file
+        void closeAll(long ms) {
+            for (int i = 0; i < open.length; i++) {
+                if (open[i] >= 0) ends[open[i]] = ms;
+            }
+        }
+    }
+
+    public static Score read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(14);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != 0x4D546864) throw new RecordingFormatException("not a MIDI file"); // "MThd"
+            long headerLength = header.getInt(4) & 0xFFFFFFFFL;
+            int format = header.getShort(8);
+            int trackCount = header.getShort(10) & 0xFFFF;
+            int division = header.getShort(12) & 0xFFFF;
+            if (format != 0 && format != 1) throw new RecordingFormatException("MIDI format " + format + " is not supported");
+            // an SMPTE division with 0 ticks per frame would divide by zero below
+            if (headerLength < 6 || division == 0 || ((division & 0x8000) != 0 && (division & 0xFF) == 0)) {
+                throw new RecordingFormatException("bad MIDI header");
+            }
+
+            PriorityQueue<Track> next = new PriorityQueue<>((a, b) ->
+                a.tick != b.tick ? Long.compare(a.tick, b.tick) : Integer.compare(a.index, b.index));
+            long offset = 8 + headerLength;
+            ByteBuffer chunk = ByteBuffer.allocate(8);
+            for (int found = 0; found < trackCount && offset + 8 <= channel.size(); ) {
+                chunk.clear();
+                readFully(channel, chunk, offset);
+                long length = chunk.getInt(4) & 0xFFFFFFFFL;
+                if (chunk.getInt(0) == 0x4D54726B) { // "MTrk"; anything else is skipped
+                    Track track = new Track(channel, found++, offset + 8, Math.min(length, channel.size() - offset - 8));
+                    if (track.advance()) next.add(track);
+                }
+                offset += 8 + length;
+            }
+
+            // ticks to µs: SMPTE divisions count frames, the usual kind quarters
+            boolean smpte = (division & 0x8000) != 0;
+            long ticksPerSecond = smpte ? (long) -(byte) (division >> 8) * (division & 0xFF) : 0;
+            long tempo = DEFAULT_TEMPO;
+            long tempoTick = 0;
+            long tempoMicros = 0;
+            long ms = 0;
+
+            Notes notes = new Notes();
+            Track track;
+            while ((track = next.poll()) != null) {
+                long micros = smpte
+                    ? track.tick * 1_000_000 / ticksPerSecond
+                    : tempoMicros + (track.tick - tempoTick) * tempo / division;
+                ms = micros / 1000;
+                int b = track.read();
+                int status;
+                int data1;
+                if (b < 0x80) {
+                    if (track.status == 0) throw new RecordingFormatException("track " + track.index + ": data byte without a status");
+                    status = track.status;
+                    data1 = b;
+                } else if (b >= 0xF0) {
+                    if (b == 0xFF) {
+                        int type = track.read();
+                        long length = track.readVarLen();
+                        if (type == 0x2F) continue; // end of track
+                        if (type == 0x51 && length == 3) {
+                            tempoMicros = micros;
+                            tempoTick = track.tick;
+                            tempo = (track.read() << 16) | (track.read() << 8) | track.read();
+                        } else {
+                            track.skip(length);
+                        }
+                    } else if (b == 0xF0 || b == 0xF7) {
+                        track.skip(track.readVarLen()); // system exclusive
+                    } else {
+                        throw new RecordingFormatException("track " + track.index + ": unexpected status " + b);
+                    }
+                    if (track.advance()) next.add(track);
+                    continue;
+                } else {
+                    status = b;
+                    track.status = b;
+                    data1 = track.read();
+                }
+
+                int command = status & 0xF0;
+                int ch = status & 0x0F;
+                int data2 = command == 0xC0 || command == 0xD0 ? 0 : track.read();
+                // a status byte where data belongs would index past the key tables
+                if (data1 >= 0x80 || data2 >= 0x80) {
+                    throw new RecordingFormatException("track " + track.index + ": data byte out of range");
+                }
+                if (command == 0x90 && data2 > 0) {
+                    notes.on(ch, data1, ms);
+                } else if (command == 0x80 || command == 0x90) {
+                    notes.off(ch, data1, ms);
+                } else if (command == 0xC0) {
+                    notes.program[ch] = data1;
+                }
+                if (track.advance()) next.add(track);
+            }
+            notes.closeAll(ms);
+
+            if (notes.moved > 0 || notes.drums > 0) {
+                System.err.println(file.getName() + ": moved " + notes.moved + " notes into C4..C7 by octaves, skipped "
+                    + notes.drums + " drum notes");
+            }
+            return Score.sorted(notes.notes, notes.timbres, notes.starts, notes.ends, notes.size);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long at) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, at + dst.position()) < 0) throw new RecordingFormatException("MIDI file ends early");
+        }
+    }
+
+    // java MidiFile <recording> <out.mid>: exports any recording, text or
+    // binary, as a Standard MIDI File.
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java MidiFile <recording> <out.mid>");
+            System.exit(2);
+        }
+        Score score = RecordingReader.read(new File(args[0]));
+        write(score, new File(args[1]));
+        System.out.println("Wrote " + score.size() + " notes to " + args[1]);
+    }
+}
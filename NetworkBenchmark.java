@@ -0,0 +1,262 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.SwingUtilities;
+
+// Checks and measurements for the client side of the network: the wire
+// format and the send path. ServerLoadTest covers the server.
+// Usage: java NetworkBenchmark <check>
+//   wire      - bytes per note and client decode time, text lines vs WireProtocol frames
+//   chord     - socket writes, write syscalls and end-to-end latency per auto chord, by send mode
+public class NetworkBenchmark {
+    public static void main(String[] args) throws Exception {
+        String check = args.length > 0 ? args[0] : "wire";
+        switch (check) {
+            case "wire":
+                System.exit(wireCheck(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000) ? 0 : 1);
+                break;
+            case "chord":
+                System.exit(chordCheck(args.length > 1 ? Integer.parseInt(args[1]) : 200) ? 0 : 1);
+                break;
+            default:
+                System.err.println("Unknown check: " + check);
+                System.exit(2);
+        }
+    }
+
+    // The same stream of remote note events as the server sends them, once as
+    // text lines and once as frames, read back the way the client does:
+    // readLine, split and the key map for text (as handleMusicMessage did),
+    // WireProtocol.Reader and decode for frames. Both must see the same
+    // events.
+    static boolean wireCheck(int notes) throws Exception {
+        Random random = new Random(21);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        ByteArrayOutputStream stamped = new ByteArrayOutputStream();
+        for (int i = 0; i < notes; i++) {
+            int op = i % 2 == 0 ? WireProtocol.NOTE_ON : WireProtocol.NOTE_OFF;
+            int note = random.nextInt(ToneGenerator.NOTES.length);
+            int timbre = random.nextInt(ToneGenerator.TIMBRES.length);
+            text.write(("MUSIC," + (op == WireProtocol.NOTE_ON ? "NOTE_ON," : "NOTE_OFF,") + ToneGenerator.NOTES[note]
+                + "," + ToneGenerator.TIMBRES[timbre] + "\n").getBytes(StandardCharsets.UTF_8));
+            frames.write(WireProtocol.frame(op, note, timbre));
+            stamped.write(WireProtocol.frame(op, note, timbre, i));
+        }
+        byte[] textBytes = text.toByteArray();
+        byte[] frameBytes = frames.toByteArray();
+        Map<String, Double> keys = new HashMap<>();
+        for (int i = 0; i < ToneGenerator.NOTES.length; i++) {
+            keys.put(ToneGenerator.NOTES[i], 261.63 * Math.pow(2, i / 12.0));
+        }
+
+        long textSum = 0, frameSum = 0;
+        long textNanos = Long.MAX_VALUE, frameNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            textSum = readTextEvents(textBytes, keys);
+            long t1 = System.nanoTime();
+            frameSum = readFrameEvents(frameBytes);
+            long t2 = System.nanoTime();
+            textNanos = Math.min(textNanos, t1 - t0);
+            frameNanos = Math.min(frameNanos, t2 - t1);
+        }
+
+        System.out.printf("wire: %d note events, best of 5%n", notes);
+        System.out.printf("  text lines        %5.1f bytes/note %7.1f ns/note%n",
+            (double) textBytes.length / notes, (double) textNanos / notes);
+        System.out.printf("  frames            %5.1f bytes/note %7.1f ns/note%n",
+            (double) frameBytes.length / notes, (double) frameNanos / notes);
+        System.out.printf("  with timestamps   %5.1f bytes/note%n", (double) stamped.size() / notes);
+        boolean same = textSum == frameSum;
+        if (!same) System.out.println("  FAILED: text and frames decoded differently");
+        return same;
+    }
+
+    // Plays auto chords (three notes on, then off) through a NoteSender into a
+    // local NioPianoServer and times each from the start of the input event
+    // to a second client having read all three notes. Send modes: text or
+    // frames, a write per event or one per input event, Nagle on or off.
+    // Writes are the sender's; syscalls are write(2) calls made by the EDT,
+    // from /proc.
+    static boolean chordCheck(int chords) throws Exception {
+        System.out.printf("chord: %d chords of 3 notes, on and off%n", chords);
+        System.out.printf("  %-38s %8s %10s %8s %8s%n", "mode", "writes", "syscalls", "p50 ms", "p99 ms");
+        boolean ok = true;
+        ok &= chordRun(chords, "text, write per event, Nagle", false, -1, false);
+        ok &= chordRun(chords, "text, write per event, NODELAY", false, -1, true);
+        ok &= chordRun(chords, "frames, write per event, NODELAY", true, -1, true);
+        ok &= chordRun(chords, "text, write per input event, NODELAY", false, 0, true);
+        ok &= chordRun(chords, "frames, write per input event, Nagle", true, 0, false);
+        ok &= chordRun(chords, "frames, write per input event, NODELAY", true, 0, true);
+        return ok;
+    }
+
+    private static boolean chordRun(int chords, String mode, boolean frames, long windowMs, boolean noDelay)
+            throws Exception {
+        NioPianoServer server = new NioPianoServer(0, 1, 4096);
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Socket listener = new Socket("localhost", server.port());
+        Socket player = new Socket("localhost", server.port());
+        try {
+            listener.setTcpNoDelay(true);
+            player.setTcpNoDelay(noDelay);
+            AtomicLong heard = new AtomicLong();
+            CountDownLatch listening = new CountDownLatch(1);
+            Thread reader = new Thread(() -> {
+                try {
+                    WireProtocol.Reader in = new WireProtocol.Reader(listener.getInputStream());
+                    int kind;
+                    while ((kind = in.next()) != WireProtocol.Reader.EOF) {
+                        if (kind == WireProtocol.Reader.FRAME) {
+                            WireProtocol.decode(ByteBuffer.wrap(in.frame()),
+                                (op, note, timbre, millis) -> heard.incrementAndGet());
+                        } else if (in.line().startsWith("MUSIC,")) {
+                            heard.incrementAndGet();
+                        } else if (in.line().equals(WireProtocol.HELLO)) {
+                            listening.countDown();
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed at the end of the run
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+            NoteSender listenerOut = new NoteSender(listener.getOutputStream(), -1);
+            listenerOut.sendLine("listener");
+            listenerOut.sendLine(WireProtocol.HELLO);
+            listening.await();
+
+            NoteSender sender = new NoteSender(player.getOutputStream(), windowMs);
+            CountDownLatch agreed = new CountDownLatch(frames ? 1 : 0);
+            Thread replies = new Thread(() -> {
+                try {
+                    WireProtocol.Reader in = new WireProtocol.Reader(player.getInputStream());
+                    while (in.next() != WireProtocol.Reader.EOF) {
+                        if (WireProtocol.HELLO.equals(in.line())) {
+                            sender.useFrames();
+                            agreed.countDown();
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed at the end of the run
+                }
+            });
+            replies.setDaemon(true);
+            replies.start();
+            sender.sendLine("player");
+            if (frames) sender.sendLine(WireProtocol.HELLO);
+            agreed.await();
+
+            List<String> chord = ChordGenerator.buildChord("C4", "major");
+            int warmup = chords / 4;
+            long[] latency = new long[2 * chords];
+            long writes0 = 0, syscalls0 = 0;
+            long[] t0 = new long[1];
+            for (int i = -warmup; i < chords; i++) {
+                if (i == 0) {
+                    writes0 = sender.writes();
+                    syscalls0 = edtWriteSyscalls();
+                }
+                for (String type : new String[] {"NOTE_ON,", "NOTE_OFF,"}) {
+                    long target = heard.get() + chord.size();
+                    // one input event, as handleKeyPress sends it
+                    SwingUtilities.invokeAndWait(() -> {
+                        t0[0] = System.nanoTime();
+                        for (String note : chord) sender.send(type + note + ",piano");
+                    });
+                    long deadline = System.nanoTime() + 2_000_000_000L;
+                    while (heard.get() < target && System.nanoTime() < deadline) Thread.onSpinWait();
+                    if (heard.get() < target) {
+                        System.out.printf("  %-38s FAILED: chord not heard%n", mode);
+                        return false;
+                    }
+                    if (i >= 0) latency[2 * i + (type.equals("NOTE_ON,") ? 0 : 1)] = System.nanoTime() - t0[0];
+                    Thread.sleep(2);
+                }
+            }
+            long writes = sender.writes() - writes0;
+            long syscalls1 = edtWriteSyscalls();
+            double syscalls = syscalls0 < 0 || syscalls1 < 0 ? Double.NaN : (double) (syscalls1 - syscalls0) / chords;
+            Arrays.sort(latency);
+            System.out.printf("  %-38s %8.1f %10.1f %8.3f %8.3f%n", mode, (double) writes / chords,
+                syscalls,
+                latency[latency.length / 2] / 1e6, latency[latency.length * 99 / 100] / 1e6);
+            return true;
+        } finally {
+            // the server goes first, so it doesn't report the disconnects
+            server.close();
+            listener.close();
+            player.close();
+        }
+    }
+
+    // write(2) calls made so far by the event dispatch thread, or a
+    // negative number where /proc doesn't say
+    private static long edtWriteSyscalls() {
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) return -1;
+        for (File task : tasks) {
+            try {
+                String comm = new String(Files.readAllBytes(new File(task, "comm").toPath())).trim();
+                if (!comm.startsWith("AWT-EventQueue")) continue;
+                for (String line : Files.readAllLines(new File(task, "io").toPath())) {
+                    if (line.startsWith("syscw:")) return Long.parseLong(line.substring(6).trim());
+                }
+            } catch (IOException | NumberFormatException e) {
+                // gone, or not readable
+            }
+        }
+        return -1;
+    }
+
+    // a checksum of every event read
+    private static long readTextEvents(byte[] bytes, Map<String, Double> keys) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        long sum = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] parts = line.split(",");
+            if (parts.length < 4 || !parts[0].equals("MUSIC")) continue;
+            double freq = keys.getOrDefault(parts[2], -1.0);
+            if (freq <= 0) continue;
+            int op = parts[1].equals("NOTE_ON") ? WireProtocol.NOTE_ON : WireProtocol.NOTE_OFF;
+            sum = sum * 31 + op * 4096 + ToneGenerator.noteId(parts[2]) * 8 + ToneGenerator.timbreId(parts[3]);
+        }
+        return sum;
+    }
+
+    private static long readFrameEvents(byte[] bytes) throws IOException {
+        WireProtocol.Reader in = new WireProtocol.Reader(new ByteArrayInputStream(bytes));
+        long[] sum = {0};
+        while (in.next() == WireProtocol.Reader.FRAME) {
+            WireProtocol.decode(ByteBuffer.wrap(in.frame()),
+                (op, note, timbre, millis) -> sum[0] = sum[0] * 31 + op * 4096 + note * 8 + timbre);
+        }
+        return sum[0];
+    }
+}
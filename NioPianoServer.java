@@ -0,0 +1,392 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Non-blocking PianoServer: a few event-loop threads, each with its own
+// Selector, serve every connection, so a room of thousands costs buffers
+// rather than threads. It speaks the same line protocol as the threaded
+// server: the first line is the username, "MUSIC,..." lines go to everyone
+// else as they are, and "CHAT,..." lines go to everyone with the sender's
+// name in front.
+//
+// The acceptor hands new connections to the loops in turn. A connection is
+// only read and written by its own loop; a message for it from anywhere else
+// goes into the connection's OutboundQueue and the loop is woken once,
+// however many messages arrive before it runs. The loop then writes
+// everything queued with one gathering write. The queue is bounded the same
+// way as the threaded server's: chat is dropped first, then the client.
+// Each broadcast is encoded once and its bytes are shared by all
+// recipients; MUSIC lines are relayed without being decoded, and so are
+// WireProtocol frames, as slices of the buffer they were read into.
+public class NioPianoServer {
+    private static final int READ_BUFFER = 512;
+    private static final int MAX_LINE = 8192;
+    private static final int MAX_GATHER = 64;
+    private static final byte[] MUSIC = "MUSIC,".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocketChannel server;
+    private final Loop[] loops;
+    private final Set<Connection> clients = ConcurrentHashMap.newKeySet();
+    private final int queueLimit;
+    private final AtomicLong overflowDisconnects = new AtomicLong();
+    private volatile boolean running = true;
+
+    public NioPianoServer(int port, int loopCount, int queueLimit) throws IOException {
+        this.queueLimit = queueLimit;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new Loop(i);
+        }
+    }
+
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    // Accepts on the calling thread until close().
+    public void run() throws IOException {
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            Loop loop = loops[next];
+            next = (next + 1) % loops.length;
+            loop.newChannels.add(channel);
+            loop.wake();
+        }
+    }
+
+    // queue and fan-out numbers for the whole room
+    public String stats() {
+        List<OutboundQueue> queues = new ArrayList<>();
+        for (Connection client : clients) queues.add(client.queue);
+        return OutboundQueue.report(queues, overflowDisconnects.get());
+    }
+
+    // Stops accepting and returns once every loop has closed its connections.
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (Loop loop : loops) {
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static OutboundQueue.Message encode(String line, boolean chat) {
+        return new OutboundQueue.Message((line + "\n").getBytes(StandardCharsets.UTF_8), chat);
+    }
+
+    private void broadcast(OutboundQueue.Message message, Connection except) {
+        for (Connection client : clients) {
+            if (client != except) client.send(message);
+        }
+    }
+
+    private void broadcastSystemMessage(String systemMessage) {
+        broadcast(encode("CHAT,[System]: " + systemMessage + " (Current users: " + clients.size() + ")", true), null);
+    }
+
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        final Queue<Connection> toFlush = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean woken = new AtomicBoolean();
+
+        Loop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        // The first caller since the loop last woke up pays for the wakeup.
+        void wake() {
+            if (Thread.currentThread() != thread && woken.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                if (!running) break;
+                woken.set(false); // before draining, so a later add wakes us again
+
+                SocketChannel channel;
+                while ((channel = newChannels.poll()) != null) {
+                    register(channel);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isReadable()) connection.read();
+                    if (key.isValid() && key.isWritable()) connection.flush();
+                }
+                Connection connection;
+                while ((connection = toFlush.poll()) != null) {
+                    connection.flush();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {}
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+
+        private void register(SocketChannel channel) {
+            Connection connection = new Connection(channel, this);
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                clients.add(connection);
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final Loop loop;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        // from any thread; moved to pending by the loop
+        final OutboundQueue queue = new OutboundQueue(queueLimit);
+        final AtomicBoolean flushQueued = new AtomicBoolean();
+        // loop only: taken from the queue but not fully written yet
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        final List<OutboundQueue.Message> inFlight = new ArrayList<>();
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        String username;
+        // the client asked for frames (WireProtocol) and was told yes
+        volatile boolean frames;
+        boolean closed;
+
+        Connection(SocketChannel channel, Loop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // Any thread. On overflow the loop is still woken, to close us.
+        void send(OutboundQueue.Message message) {
+            int result = queue.offer(message);
+            if (result == OutboundQueue.DROPPED) return;
+            if (result == OutboundQueue.OVERFLOW) overflowDisconnects.incrementAndGet();
+            if (flushQueued.compareAndSet(false, true)) {
+                loop.toFlush.add(this);
+                loop.wake();
+            }
+        }
+
+        // Loop only: writes as much as the socket takes in as few calls as
+        // possible, and waits for OP_WRITE for the rest.
+        void flush() {
+            if (closed) return;
+            flushQueued.set(false);
+            if (queue.isClosed()) {
+                System.out.println("Disconnecting " + username + ": too far behind");
+                close();
+                return;
+            }
+            try {
+                while (true) {
+                    // more is only taken once the last batch is out, so a
+                    // client that isn't reading backs up in its queue
+                    if (pending.isEmpty()) {
+                        if (!inFlight.isEmpty()) {
+                            queue.written(inFlight);
+                            inFlight.clear();
+                        }
+                        queue.drainTo(inFlight);
+                        if (inFlight.isEmpty()) break;
+                        for (OutboundQueue.Message message : inFlight) {
+                            // the bytes are shared; each recipient gets its own position
+                            pending.add(message.bytes.duplicate());
+                        }
+                    }
+                    int count = 0;
+                    for (ByteBuffer buffer : pending) {
+                        gather[count++] = buffer;
+                        if (count == MAX_GATHER) break;
+                    }
+                    long written = channel.write(gather, 0, count);
+                    while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                        pending.poll();
+                    }
+                    if (written == 0) break;
+                }
+                Arrays.fill(gather, null);
+                int ops = pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                if (key.interestOps() != ops) key.interestOps(ops);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Loop only: reads what has arrived and handles every complete line.
+        void read() {
+            try {
+                int n = channel.read(in);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            byte[] data = in.array();
+            int limit = in.position();
+            int start = 0;
+            boolean sliced = false;
+            while (start < limit) {
+                // only a client that negotiated sends frames; from the rest a
+                // high first byte is just UTF-8 text
+                if (frames && WireProtocol.isFrame(data[start] & 0xFF)) {
+                    int end = start + 1 + (data[start] & WireProtocol.MAX_PAYLOAD);
+                    if (end > limit) break;
+                    handleFrame(ByteBuffer.wrap(data, start, end - start).slice());
+                    sliced = true;
+                    if (closed) return;
+                    start = end;
+                    continue;
+                }
+                int i = start;
+                while (i < limit && data[i] != '\n') i++;
+                if (i == limit) break;
+                handle(data, start, i > start && data[i - 1] == '\r' ? i - 1 : i);
+                if (closed) return;
+                start = i + 1;
+            }
+            if (sliced) {
+                // frames handed out are views of this buffer; read on into a new one
+                ByteBuffer next = ByteBuffer.allocate(in.capacity());
+                next.put(data, start, limit - start);
+                in = next;
+            } else {
+                in.flip();
+                in.position(start);
+                in.compact();
+            }
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_LINE) {
+                    System.out.println("Line too long, disconnecting " + username);
+                    close();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        private void handle(byte[] data, int from, int to) {
+            if (username == null) {
+                username = new String(data, from, to - from, StandardCharsets.UTF_8);
+                broadcastSystemMessage(username + " has entered the room.");
+                return;
+            }
+            if (startsWith(data, from, to, MUSIC)) {
+                // relayed byte for byte, newline included
+                byte[] message = Arrays.copyOfRange(data, from, to + 1);
+                message[to - from] = '\n';
+                broadcast(new OutboundQueue.Message(message, false), this);
+                return;
+            }
+            String line = new String(data, from, to - from, StandardCharsets.UTF_8);
+            int firstComma = line.indexOf(',');
+            if (firstComma == -1) return;
+            if ("CHAT".equals(line.substring(0, firstComma))) {
+                broadcast(encode("CHAT," + username + ": " + line.substring(firstComma + 1), true), null);
+            } else if (WireProtocol.HELLO.equals(line)) {
+                // answered before any frame can be queued for us
+                send(encode(WireProtocol.HELLO, false));
+                frames = true;
+            }
+        }
+
+        // Frames go to clients that read them as the slice they arrived in,
+        // without being decoded or copied; the rest get the same events as
+        // text, made once.
+        private void handleFrame(ByteBuffer frame) {
+            OutboundQueue.Message binary = new OutboundQueue.Message(frame, false);
+            OutboundQueue.Message text = null;
+            for (Connection client : clients) {
+                if (client == this) continue;
+                if (client.frames) {
+                    client.send(binary);
+                } else {
+                    if (text == null) text = new OutboundQueue.Message(WireProtocol.toText(frame), false);
+                    if (text.bytes.hasRemaining()) client.send(text);
+                }
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            clients.remove(this);
+            queue.close();
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            if (username != null) {
+                System.out.println("Client disconnected: " + username);
+                System.out.println(username + ": " + queue.summary());
+                broadcastSystemMessage(username + " has left the room.");
+            }
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[from + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+}
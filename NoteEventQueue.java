@@ -0,0 +1,107 @@
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded multi-producer / single-consumer ring of note events between the
+// input threads (EDT, network, playback) and the audio thread.
+// Slots are preallocated parallel arrays; each slot's sequence number says
+// whether it is free for the producer claiming that position or ready for the
+// consumer, so neither side takes a lock or allocates.
+public class NoteEventQueue {
+
+    public interface Handler {
+        void onEvent(int type, int key, int timbre, int owner, ShortBuffer sample);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final int[] types;
+    private final int[] keys;
+    private final int[] timbres;
+    private final int[] owners;
+    private final ShortBuffer[] samples;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long head = 0;
+    private volatile int maxDepth = 0;
+
+    // capacity is rounded up to a power of two
+    public NoteEventQueue(int requestedCapacity) {
+        int cap = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.sequences = new AtomicLongArray(cap);
+        this.types = new int[cap];
+        this.keys = new int[cap];
+        this.timbres = new int[cap];
+        this.owners = new int[cap];
+        this.samples = new ShortBuffer[cap];
+        for (int i = 0; i < cap; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // Safe from any thread. Returns false and counts a drop when the ring is full,
+    // which only happens if the audio thread has stopped draining.
+    public boolean offer(int type, int key, int timbre, int owner, ShortBuffer sample) {
+        while (true) {
+            long pos = tail.get();
+            int idx = (int) (pos & mask);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    types[idx] = type;
+                    keys[idx] = key;
+                    timbres[idx] = timbre;
+                    owners[idx] = owner;
+                    samples[idx] = sample;
+                    sequences.lazySet(idx, pos + 1); // publish to the consumer
+                    return true;
+                }
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            // another producer claimed this position first, retry with the new tail
+        }
+    }
+
+    // Consumer thread only. Hands every published event to the handler in order
+    // and returns how many were drained.
+    public int drain(Handler handler) {
+        long h = head;
+        int depth = depth();
+        if (depth > maxDepth) maxDepth = depth;
+
+        int count = 0;
+        while (true) {
+            int idx = (int) (h & mask);
+            if (sequences.get(idx) != h + 1) break;
+            handler.onEvent(types[idx], keys[idx], timbres[idx], owners[idx], samples[idx]);
+            samples[idx] = null;
+            sequences.lazySet(idx, h + capacity); // hand the slot back to producers
+            h++;
+            count++;
+        }
+        head = h;
+        return count;
+    }
+
+    public int depth() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public long droppedEvents() {
+        return dropped.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
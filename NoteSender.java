@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+// Everything the client sends goes through here. Note events are not written
+// one by one: they collect in a batch that is written once the input event
+// that made them is over, so the three notes of an auto chord leave in one
+// write, in one frame when the server takes frames. The batch is flushed by a
+// task queued on the EDT behind the input event, or by a timer when a window
+// is set (-Dpiano.sendWindowMs=N); -1 writes every event at once, as before.
+// Other lines, like chat, flush the batch and go straight out.
+//
+// The socket should have TCP_NODELAY set: writes are already as large as
+// they can usefully be, and Nagle would only hold back the next chord until
+// the last one is acknowledged.
+public class NoteSender {
+    static final long WINDOW_MS = Long.getLong("piano.sendWindowMs", 0);
+
+    private final OutputStream out;
+    private final long windowMs;
+    private final WireProtocol.Batch batch = new WireProtocol.Batch();
+    private final Timer timer;
+    private volatile boolean frames = false;
+    private boolean flushQueued = false;
+    private long writes = 0;
+
+    public NoteSender(OutputStream out) {
+        this(out, WINDOW_MS);
+    }
+
+    NoteSender(OutputStream out, long windowMs) {
+        this.out = out;
+        this.windowMs = windowMs;
+        if (windowMs > 0) {
+            timer = new Timer((int) windowMs, e -> flush());
+            timer.setRepeats(false);
+        } else {
+            timer = null;
+        }
+    }
+
+    // The server agreed to WireProtocol frames.
+    public void useFrames() {
+        frames = true;
+    }
+
+    // msg is "NOTE_ON,C4,sine" or "NOTE_OFF,C4,sine"
+    public synchronized void send(String msg) {
+        if (!frames || !addEvent(msg)) batch.addLine("MUSIC," + msg);
+        if (windowMs < 0) {
+            flush();
+        } else if (!flushQueued) {
+            flushQueued = true;
+            if (timer != null) {
+                timer.restart();
+            } else {
+                SwingUtilities.invokeLater(this::flush);
+            }
+        }
+    }
+
+    // A line sent at once, after any notes still held.
+    public synchronized void sendLine(String line) {
+        batch.addLine(line);
+        flush();
+    }
+
+    public synchronized void flush() {
+        flushQueued = false;
+        if (batch.isEmpty()) return;
+        try {
+            batch.writeTo(out);
+            writes++;
+        } catch (IOException e) {
+            // the listener reports the lost connection
+        }
+        batch.clear();
+    }
+
+    // socket writes so far
+    public synchronized long writes() {
+        return writes;
+    }
+
+    // false for anything that isn't a note event on the keyboard
+    private boolean addEvent(String msg) {
+        int first = msg.indexOf(',');
+        int second = msg.indexOf(',', first + 1);
+        if (first < 0 || second < 0) return false;
+        int op;
+        if (msg.startsWith("NOTE_ON,")) {
+            op = WireProtocol.NOTE_ON;
+        } else if (msg.startsWith("NOTE_OFF,")) {
+            op = WireProtocol.NOTE_OFF;
+        } else {
+            return false;
+        }
+        int note = ToneGenerator.noteId(msg.substring(first + 1, second));
+        if (note < 0) return false;
+        batch.addEvent(op, note, ToneGenerator.timbreId(msg.substring(second + 1)));
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Bounces a saved recording (note,startTime,endTime,timbre) to a WAV file using
+// the same AudioEngine synthesis as live play, without any audio device and as
+// fast as the CPU allows. The engine's Sequencer places every event on its exact
+// sample frame instead of quantizing to whole blocks.
+//
+// Usage: java OfflineRenderer <recording.txt|.prec|.mid> [out.wav]
+public class OfflineRenderer {
+    // how long release tails may ring after the last note-off
+    private static final int MAX_TAIL_FRAMES = (int) (AudioEngine.SAMPLE_RATE * 2);
+
+    static class Result {
+        final long frames;
+        final long wallNanos;
+
+        Result(long frames, long wallNanos) {
+            this.frames = frames;
+            this.wallNanos = wallNanos;
+        }
+
+        double audioSeconds() {
+            return frames / (double) AudioEngine.SAMPLE_RATE;
+        }
+
+        double speedup() {
+            return audioSeconds() / (wallNanos / 1e9);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java OfflineRenderer <recording.txt|.prec|.mid> [out.wav]");
+            System.exit(2);
+        }
+        File in = new File(args[0]);
+        File out = new File(args.length > 1 ? args[1] : stripExtension(in.getPath()) + ".wav");
+
+        Result result = render(RecordingReader.read(in), out);
+        System.out.printf("Rendered %s -> %s: %.1f s of audio in %.0f ms (%.1fx real time)%n",
+            in.getName(), out.getName(), result.audioSeconds(), result.wallNanos / 1e6, result.speedup());
+    }
+
+    static Result render(Score score, File out) throws IOException {
+        long t0 = System.nanoTime();
+        try (WavWriter wav = new WavWriter(out)) {
+            long frames = render(score, wav);
+            return new Result(frames, System.nanoTime() - t0);
+        }
+    }
+
+    // Renders into the writer and returns the number of frames produced.
+    static long render(Score score, WavWriter wav) throws IOException {
+        if (score.size() >= (1 << 23)) {
+            throw new IOException("Recording too long to bounce: " + score.size() + " notes");
+        }
+        AudioEngine engine = ToneGenerator.createOfflineEngine();
+        Sequencer sequencer = new Sequencer(score);
+        engine.startSequencer(sequencer);
+
+        byte[] block = new byte[2 * AudioEngine.BLOCK_FRAMES];
+        long frame = 0;
+        while (!sequencer.isFinished()) {
+            engine.render(block, AudioEngine.BLOCK_FRAMES);
+            wav.write(block, block.length);
+            frame += AudioEngine.BLOCK_FRAMES;
+        }
+
+        // let release tails ring out
+        long tailEnd = frame + MAX_TAIL_FRAMES;
+        while (engine.activeVoices() > 0 && frame < tailEnd) {
+            engine.render(block, AudioEngine.BLOCK_FRAMES);
+            wav.write(block, block.length);
+            frame += AudioEngine.BLOCK_FRAMES;
+        }
+        return frame;
+    }
+
+    private static String stripExtension(String path) {
+        int dot = path.lastIndexOf('.');
+        return dot > path.lastIndexOf(File.separatorChar) ? path.substring(0, dot) : path;
+    }
+
+    // 16-bit mono PCM WAV; sizes in the header are filled in on close.
+    static class WavWriter implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private long dataBytes = 0;
+
+        WavWriter(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            channel.write(header(0));
+        }
+
+        void write(byte[] pcm, int length) throws IOException {
+            if (buffer.remaining() < length) flush();
+            buffer.put(pcm, 0, length);
+            dataBytes += length;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                channel.write(header(dataBytes), 0);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private static ByteBuffer header(long dataBytes) {
+            int rate = (int) AudioEngine.SAMPLE_RATE;
+            ByteBuffer h = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+            h.put("RIFF".getBytes()).putInt((int) (36 + dataBytes)).put("WAVE".getBytes());
+            h.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(rate).putInt(rate * 2).putShort((short) 2).putShort((short) 16);
+            h.put("data".getBytes()).putInt((int) dataBytes);
+            h.flip();
+            return h;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Messages waiting to be written to one client. Broadcasts only ever add
+// here, so a client that reads slowly holds up nobody but itself.
+//
+// The queue is bounded. Past half full, chat is dropped so that notes still
+// get through; a client that lets notes fill it has fallen too far behind to
+// play along and is disconnected.
+//
+// It also keeps the client's numbers: deepest queue, chat dropped, and the
+// fan-out latency from the broadcast to the message being written.
+public class OutboundQueue {
+    public static final int ACCEPTED = 0;
+    public static final int DROPPED = 1;
+    public static final int OVERFLOW = 2;
+
+    // One encoded broadcast, shared by every recipient's queue. Writers
+    // read bytes through a duplicate and never move its position.
+    public static final class Message {
+        final ByteBuffer bytes;
+        final boolean chat;
+        final long createdNanos = System.nanoTime();
+
+        public Message(ByteBuffer bytes, boolean chat) {
+            this.bytes = bytes;
+            this.chat = chat;
+        }
+
+        public Message(byte[] bytes, boolean chat) {
+            this(ByteBuffer.wrap(bytes), chat);
+        }
+    }
+
+    private final int limit;
+    // not synchronized, so a virtual-thread writer waiting here doesn't pin
+    // its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private boolean closed = false;
+
+    // under lock
+    private int maxDepth = 0;
+    private long dropped = 0;
+    private long written = 0;
+    private long latencyTotal = 0;
+    private long latencyMax = 0;
+
+    public OutboundQueue(int limit) {
+        this.limit = limit;
+    }
+
+    // Any thread. On OVERFLOW the queue is closed and the caller should
+    // disconnect the client.
+    public int offer(Message message) {
+        lock.lock();
+        try {
+            if (closed) return DROPPED;
+            int depth = queue.size();
+            if (message.chat && depth >= limit / 2) {
+                dropped++;
+                return DROPPED;
+            }
+            if (depth >= limit) {
+                closed = true;
+                queue.clear();
+                notEmpty.signal();
+                return OVERFLOW;
+            }
+            queue.add(message);
+            if (depth + 1 > maxDepth) maxDepth = depth + 1;
+            if (depth == 0) notEmpty.signal();
+            return ACCEPTED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves everything queued into batch without waiting; returns how many.
+    public int drainTo(List<Message> batch) {
+        lock.lock();
+        try {
+            int n = queue.size();
+            batch.addAll(queue);
+            queue.clear();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for at least one message, then moves everything queued into
+    // batch. Returns false once the queue is closed.
+    public boolean takeAll(List<Message> batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (closed) return false;
+            batch.addAll(queue);
+            queue.clear();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The writer has put batch on the wire.
+    public void written(List<Message> batch) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            for (Message message : batch) {
+                long latency = now - message.createdNanos;
+                latencyTotal += latency;
+                if (latency > latencyMax) latencyMax = latency;
+            }
+            written += batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // e.g. "sent 1200, max queue 14, dropped 0 chat, fan-out mean 0.41 ms max 3.20 ms"
+    public String summary() {
+        lock.lock();
+        try {
+            return String.format("sent %d, max queue %d, dropped %d chat, fan-out mean %.2f ms max %.2f ms",
+                written, maxDepth, dropped, written == 0 ? 0.0 : latencyTotal / 1e6 / written, latencyMax / 1e6);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // One line for the whole room, for --stats.
+    public static String report(Collection<OutboundQueue> queues, long disconnected) {
+        long queued = 0, written = 0, dropped = 0, latencyTotal = 0, latencyMax = 0;
+        int deepest = 0;
+        for (OutboundQueue q : queues) {
+            q.lock.lock();
+            try {
+                queued += q.queue.size();
+                deepest = Math.max(deepest, q.maxDepth);
+                written += q.written;
+                dropped += q.dropped;
+                latencyTotal += q.latencyTotal;
+                latencyMax = Math.max(latencyMax, q.latencyMax);
+            } finally {
+                q.lock.unlock();
+            }
+        }
+        return String.format("[stats] clients %d, queued %d, max queue %d, sent %d, dropped %d chat, "
+                + "overflow disconnects %d, fan-out mean %.2f ms max %.2f ms",
+            queues.size(), queued, deepest, written, dropped, disconnected,
+            written == 0 ? 0.0 : latencyTotal / 1e6 / written, latencyMax / 1e6);
+    }
+}
@@ -13,20 +13,21 @@ import java.util.function.Supplier;
 import javax.swing.*;
 
 public class PianoApp {
-    
-    private static final java.util.Map<String, Long> activeNotes = new java.util.HashMap<>();
 
     private static PlaybackManager playbackManager;
     private static Socket socket;
-    private static PrintWriter out;
-    private static BufferedReader in;
-    private static ExecutorService networkExecutor = Executors.newSingleThreadExecutor();
+    private static NoteSender sender;
+    private static WireProtocol.Reader in;
+    // -Dpiano.wire=text keeps to the text protocol
+    private static final boolean ASK_FOR_FRAMES = !"text".equalsIgnoreCase(System.getProperty("piano.wire"));
+    // -Dpiano.virtualThreads=true runs the network listener on a virtual thread (Java 21+)
+    private static ExecutorService networkExecutor = Executors.newSingleThreadExecutor(
+        VirtualThreads.factory("network-", Boolean.getBoolean("piano.virtualThreads")));
     private static String username;
     private static JCheckBox autoChordCheck;
     private static JComboBox<String> chordTypeSelector;
     private static JTextArea chatArea;
     private static JTextField chatInput;
-    private static java.util.List<String[]> currentPlaybackEvents = new java.util.ArrayList<>();
     // private static JProgressBar playbackBar;
     // private static JButton playResumeBtn;
     private static JLabel currentNoteLabel;
@@ -40,9 +41,14 @@ public class PianoApp {
 
     public static String TIMBRE = "sine";
 
-    static final java.util.List<String[]> rawEvents = new java.util.ArrayList<>();
-    static boolean isRecording = false;
-    static long recordingStartTime;
+    // recordings larger than this are streamed instead of loaded (-Dpiano.streamThresholdMb)
+    private static final long STREAM_THRESHOLD_BYTES = Long.getLong("piano.streamThresholdMb", 16) << 20;
+
+    // the session being recorded, or the last one once stopped; null before
+    // the first recording
+    static volatile Recorder recorder;
+    // the on-disk copy of the current take, until it is saved (EDT only)
+    private static RecordingJournal journal;
 
     static {
         WHITE_KEYS.put("C4", 261.63);  WHITE_KEYS.put("D4", 293.66);  WHITE_KEYS.put("E4", 329.63);
@@ -70,9 +76,12 @@ public class PianoApp {
         username = JOptionPane.showInputDialog("Enter your username:");
         try {
             socket = new Socket(serverIP, Integer.parseInt(portStr));
-            out    = new PrintWriter(socket.getOutputStream(), true);
-            in     = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.println(username);
+            // NoteSender batches its own writes; Nagle would only delay them
+            socket.setTcpNoDelay(true);
+            sender = new NoteSender(socket.getOutputStream());
+            in     = new WireProtocol.Reader(socket.getInputStream());
+            sender.sendLine(username);
+            if (ASK_FOR_FRAMES) sender.sendLine(WireProtocol.HELLO);
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(null, "Invalid port number. Please enter a valid integer.");
             System.exit(1);
@@ -81,8 +90,8 @@ public class PianoApp {
             System.exit(1);
         }
     
-        // Initialize audio & keys
-        ToneGenerator.loadPianoSamples();
+        // Initialize audio & keys, piano samples load on first use
+        long startupBegin = System.nanoTime();
         Set<String> allKeys = new HashSet<>();
         allKeys.addAll(WHITE_KEYS.keySet());
         allKeys.addAll(BLACK_KEYS.keySet());
@@ -141,12 +150,14 @@ public class PianoApp {
         JButton loadBtn       = new JButton("📂 Load & Play");
         JButton resetBtn      = new JButton("🔄 Reset");
         JButton playResumeBtn = new JButton("▶");
+        JButton loopBtn       = new JButton("🔁 Set A");
         JProgressBar playbackBar = new JProgressBar(0,100);
         playbackManager = new PlaybackManager(
             WHITE_KEYS, BLACK_KEYS, keyButtons,
             playbackBar, playResumeBtn
         );
         playbackBar.setStringPainted(false);
+        playbackBar.setToolTipText("Click or drag to seek");
         
     
         GridBagConstraints gbc = new GridBagConstraints();
@@ -174,6 +185,20 @@ public class PianoApp {
         gbc.weightx   = 1.0;  // let the two-cell span grow
         recordPanel.add(playbackBar, gbc);
 
+        // row3: A-B loop, and whether recordings take in remote players
+        JLabel loopLabel = new JLabel("Loop: off");
+        JCheckBox recordRemoteCheck = new JCheckBox("Record remote");
+        gbc.gridy     = 2;
+        gbc.gridwidth = 1;
+        gbc.weightx   = 0.0;
+        gbc.gridx     = 0; recordPanel.add(loopBtn, gbc);
+        gbc.gridx     = 1;
+        gbc.gridwidth = 2;
+        recordPanel.add(loopLabel, gbc);
+        gbc.gridx     = 3;
+        gbc.gridwidth = 1;
+        recordPanel.add(recordRemoteCheck, gbc);
+
         gbc.gridwidth = 1;
         gbc.weightx   = 0.0;
         recordPanel.setPreferredSize(new Dimension(recordPanel.getPreferredSize().width, halfH));
@@ -249,6 +274,17 @@ public class PianoApp {
         frame.pack();
         frame.setSize(pianoWidth, pianoHeight + topPanel.getPreferredSize().height);
         frame.setVisible(true);
+        long windowShownMs = (System.nanoTime() - startupBegin) / 1_000_000;
+
+        // warm the piano samples in the background, the keyboard is already usable
+        Thread sampleLoader = new Thread(() -> {
+            boolean warm = ToneGenerator.loadPianoSamples();
+            long readyMs = (System.nanoTime() - startupBegin) / 1_000_000;
+            System.out.println("Startup: window shown in " + windowShownMs + " ms, piano samples ready in "
+                + readyMs + " ms (" + (warm ? "warm" : "cold") + " cache)");
+        }, "sample-loader");
+        sampleLoader.setDaemon(true);
+        sampleLoader.start();
 
         // set up key bindings
         InputMap inputMap = frame.getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
@@ -296,19 +332,29 @@ public class PianoApp {
         // button behaviors!!!
 
         recordBtn.addActionListener(e -> {
-            isRecording = true;
-            rawEvents.clear();
-            activeNotes.clear();
-            recordingStartTime = System.currentTimeMillis();
+            if (journal != null) {
+                journal.discard(); // the unsaved take is being replaced
+                journal = null;
+            }
+            Recorder r = new Recorder(recordRemoteCheck.isSelected());
+            if (RecordingJournal.ENABLED) {
+                try {
+                    journal = RecordingJournal.start(r);
+                } catch (IOException ex) {
+                    System.err.println("Recording without a journal: " + ex.getMessage());
+                }
+            }
+            recorder = r;
             recordBtn.setEnabled(false);
             stopBtn.setEnabled(true);
         });
         
         stopBtn.addActionListener(e -> {
-            isRecording = false;
+            recorder.stop();
+            if (journal != null) journal.finish();
             recordBtn.setEnabled(true);
             stopBtn.setEnabled(false);
-            currentPlaybackEvents = convertRawEventsToPlaybackFormat(rawEvents);
+            playbackManager.load(recorder.toScore());
             SwingUtilities.invokeLater(() -> {
                 playbackBar.setValue(0);
                 playResumeBtn.setText("▶");
@@ -321,11 +367,11 @@ public class PianoApp {
         resetBtn.addActionListener(e -> resetAllNotes());
     
         playResumeBtn.addActionListener(e -> {
-            if (!currentPlaybackEvents.isEmpty()) {
-                if (playbackBar.getValue() > 0 && playbackBar.getValue() < 100) {
+            if (playbackManager.hasLoaded()) {
+                if (playbackManager.isActive()) {
                     playbackManager.togglePause();
                 } else {
-                    playbackManager.play(currentPlaybackEvents);
+                    playbackManager.play();
                     playResumeBtn.setText("⏸");
                 }
             } else {
@@ -333,14 +379,80 @@ public class PianoApp {
             }
         });
     
+        // the bar doubles as a scrubber: clicking or dragging seeks
+        java.awt.event.MouseAdapter scrub = new java.awt.event.MouseAdapter() {
+            @Override
+            public void mousePressed(java.awt.event.MouseEvent e) {
+                seekTo(e);
+            }
+
+            @Override
+            public void mouseDragged(java.awt.event.MouseEvent e) {
+                seekTo(e);
+            }
+
+            private void seekTo(java.awt.event.MouseEvent e) {
+                double fraction = Math.max(0.0, Math.min(1.0, e.getX() / (double) playbackBar.getWidth()));
+                playbackBar.setValue((int) (fraction * 100));
+                playbackManager.seek((long) (fraction * playbackManager.duration()));
+            }
+        };
+        playbackBar.addMouseListener(scrub);
+        playbackBar.addMouseMotionListener(scrub);
+
+        // one button cycles: set A at the current position, set B and start
+        // looping, then clear
+        long[] loopA = {-1};
+        loopBtn.addActionListener(e -> {
+            long now = playbackManager.positionMillis();
+            if (playbackManager.hasLoop()) {
+                playbackManager.clearLoop();
+                loopA[0] = -1;
+                loopBtn.setText("🔁 Set A");
+                loopLabel.setText("Loop: off");
+            } else if (loopA[0] < 0) {
+                loopA[0] = now;
+                loopBtn.setText("🔁 Set B");
+                loopLabel.setText("Loop: A at " + formatTime(now));
+            } else if (now != loopA[0]) {
+                playbackManager.setLoop(loopA[0], now);
+                loopBtn.setText("🔁 Clear");
+                loopLabel.setText("Loop: " + formatTime(Math.min(loopA[0], now))
+                    + " – " + formatTime(Math.max(loopA[0], now)));
+            }
+        });
+
+        recoverJournals();
         networkExecutor.submit(PianoApp::listenForMessages);
     }
 
+    // Takes an earlier run didn't get to save are turned into recordings; the
+    // latest is loaded, ready to play.
+    private static void recoverJournals() {
+        List<File> recovered = RecordingJournal.recoverAll();
+        if (recovered.isEmpty()) return;
+        File latest = recovered.get(recovered.size() - 1);
+        try {
+            playbackManager.load(RecordingReader.read(latest));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        StringBuilder names = new StringBuilder();
+        for (File file : recovered) {
+            names.append("\n").append(file.getPath());
+        }
+        JOptionPane.showMessageDialog(null, "Recovered unsaved recordings:" + names
+            + "\n\nThe latest is loaded.", "Recordings recovered", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private static String formatTime(long ms) {
+        return String.format("%d:%04.1f", ms / 60000, (ms % 60000) / 1000.0);
+    }
+
     private static JLayeredPane createPiano() {
         JLayeredPane layeredPane = new JLayeredPane();
         layeredPane.setPreferredSize(new Dimension(WHITE_KEYS.size() * 60, 300));
     
-        Supplier<Long> recordingStartTimeSupplier = () -> recordingStartTime;
         Supplier<Boolean> isAutoChordEnabled = () -> autoChordCheck.isSelected();
         Supplier<String> chordTypeSupplier = () -> (String) chordTypeSelector.getSelectedItem();
     
@@ -356,9 +468,8 @@ public class PianoApp {
             JButton key = KeyFactory.createKey(
                 note, freq, false,
                 x, 0, 60, 300,
-                keyButtons, pressCount, rawEvents, activeNotes,
-                recordingStartTimeSupplier,
-                () -> isRecording,
+                keyButtons, pressCount,
+                () -> recorder,
                 () -> TIMBRE,
                 PianoApp::sendMessage,
                 ToneGenerator::stopTone,
@@ -394,9 +505,8 @@ public class PianoApp {
             JButton key = KeyFactory.createKey(
                 blackNote, freq, true,
                 bx, 0, 40, 180,
-                keyButtons, pressCount, rawEvents, activeNotes,
-                recordingStartTimeSupplier,
-                () -> isRecording,
+                keyButtons, pressCount,
+                () -> recorder,
                 () -> TIMBRE,
                 PianoApp::sendMessage,
                 ToneGenerator::stopTone,
@@ -416,11 +526,22 @@ public class PianoApp {
     private static void saveRecording() {
         JFileChooser chooser = new JFileChooser();
         if (chooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
-            try (PrintWriter writer = new PrintWriter(chooser.getSelectedFile())) {
-                writer.println("note,startTime,endTime,timbre");
-                List<String[]> converted = convertRawEventsToPlaybackFormat(rawEvents);
-                for (String[] row : converted) {
-                    writer.println(String.join(",", row));
+            File file = chooser.getSelectedFile();
+            Recorder r = recorder;
+            // already in start order, so the file can be streamed back
+            Score score = r != null ? r.toScore() : new Score(new int[0], new int[0], new long[0], new long[0], 0);
+            try {
+                // chosen by naming the file *.prec; the rows are the same as the text file's
+                if (file.getName().endsWith(BinaryRecording.EXTENSION)) {
+                    BinaryRecording.write(score, file);
+                } else if (file.getName().endsWith(".mid")) {
+                    MidiFile.write(score, file);
+                } else {
+                    saveText(file, score);
+                }
+                if (journal != null && (r == null || !r.isRecording())) {
+                    journal.discard(); // the take is safe in the saved file now
+                    journal = null;
                 }
             } catch (Exception ex) {
                 ex.printStackTrace();
@@ -428,22 +549,47 @@ public class PianoApp {
         }
     }
 
+    private static void saveText(File file, Score score) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            writer.println("note,startTime,endTime,timbre");
+            for (int i = 0; i < score.size(); i++) {
+                writer.println(score.noteName(i) + "," + score.start(i) + "," + score.end(i)
+                    + "," + ToneGenerator.TIMBRES[score.timbre(i)]);
+            }
+        }
+    }
+
     private static void loadAndPlay() {
         JFileChooser chooser = new JFileChooser();
         if (chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
             File file = chooser.getSelectedFile();
-            java.util.List<String[]> loaded = new java.util.ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                String header = reader.readLine();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length == 4) loaded.add(parts);
-                }
+            long size = file.length();
+            try {
+                // binary rows are about a fifth the size of text ones
+                if (BinaryRecording.isBinary(file)) size *= 5;
+                // MIDI files are always read whole, merging their tracks
+                if (MidiFile.isMidi(file)) size = 0;
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            currentPlaybackEvents = loaded;
+            if (size > STREAM_THRESHOLD_BYTES) {
+                // too big to hold as rows: play it straight from the file
+                playbackManager.loadStream(file);
+                JOptionPane.showMessageDialog(null, "Large file: it will be streamed while playing.", "Message", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            try {
+                // rows this build can't play, like timbres it doesn't know, are
+                // skipped with a warning, as streaming does; only a file that
+                // can't be read at all is refused
+                playbackManager.load(RecordingReader.read(file, true));
+            } catch (RecordingFormatException e) {
+                JOptionPane.showMessageDialog(null, file.getName() + ", " + e.getMessage(), "Can't load recording", JOptionPane.ERROR_MESSAGE);
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
             JOptionPane.showMessageDialog(null, "File loaded successfully!", "Message", JOptionPane.INFORMATION_MESSAGE);
         }
     }
@@ -466,27 +612,36 @@ public class PianoApp {
     }
 
 
+    // msg is "NOTE_ON,C4,sine" or "NOTE_OFF,C4,sine"; see NoteSender
     static void sendMessage(String msg) {
         // System.out.println("[DEBUG] Directly sending to server: MUSIC," + msg);
-        if (out != null) out.println("MUSIC," + msg);
+        if (sender != null) sender.send(msg);
     }
 
     private static void sendChat() {
         String text = chatInput.getText().trim();
         if (!text.isEmpty()) {
-            out.println("CHAT," + text);
+            sender.sendLine("CHAT," + text);
             chatInput.setText("");
         }
     }
 
     private static void listenForMessages() {
         try {
-            String line;
             while (true) {
-                line = in.readLine();
-                if (line == null) {
+                int kind = in.next();
+                if (kind == WireProtocol.Reader.EOF) {
                     throw new IOException("Server closed the connection");
                 }
+                if (kind == WireProtocol.Reader.FRAME) {
+                    WireProtocol.decode(java.nio.ByteBuffer.wrap(in.frame()), PianoApp::handleNote);
+                    continue;
+                }
+                String line = in.line();
+                if (line.equals(WireProtocol.HELLO)) {
+                    sender.useFrames();
+                    continue;
+                }
     
                 int firstComma = line.indexOf(',');
                 if (firstComma != -1) {
@@ -535,57 +690,50 @@ public class PianoApp {
             String timbre = parts[typeIndex + 2];
             // System.out.println("[CLIENT HANDLE] type=" + type + ", note=" + note + ", timbre=" + timbre);
     
-            double freq = WHITE_KEYS.getOrDefault(note, BLACK_KEYS.getOrDefault(note, -1.0));
-            if (freq > 0) {
-                if (type.equals("NOTE_ON")) {
-                    int count = pressCount.getOrDefault(note, 0);
-                    if (count == 0) {
-                        ToneGenerator.playToneContinuous(freq, note, timbre);
-                    }
-                    pressCount.put(note, count + 1);
-                    JButton key = keyButtons.get(note);
-                    if (key != null) {
-                        SwingUtilities.invokeLater(() -> key.setBackground(Color.YELLOW));
-                    }
-                } else if (type.equals("NOTE_OFF")) {
-                    int count = pressCount.getOrDefault(note, 1) - 1;
-                    if (count <= 0) {
-                        pressCount.remove(note);
-                        ToneGenerator.stopTone(note);
-                    } else {
-                        pressCount.put(note, count);
-                    }
-                    JButton key = keyButtons.get(note);
-                    if (key != null) {
-                        SwingUtilities.invokeLater(() -> key.setBackground(note.contains("#") ? Color.BLACK : Color.WHITE));
-                    }
-                }
+            int op = type.equals("NOTE_ON") ? WireProtocol.NOTE_ON
+                : type.equals("NOTE_OFF") ? WireProtocol.NOTE_OFF : 0;
+            int id = ToneGenerator.noteId(note);
+            if (op != 0 && id >= 0) {
+                handleNote(op, id, ToneGenerator.timbreId(timbre), -1);
             }
         }
     }
 
-
-    private static List<String[]> convertRawEventsToPlaybackFormat(List<String[]> rawEvents) {
-        List<String[]> result = new ArrayList<>();
-        Map<String, String[]> activeMap = new HashMap<>();
-    
-        for (String[] evt : rawEvents) {
-            if (evt[0].equals("NOTE_ON")) {
-                activeMap.put(evt[1], evt);
-            } else if (evt[0].equals("NOTE_OFF") && activeMap.containsKey(evt[1])) {
-                String[] start = activeMap.remove(evt[1]);
-                result.add(new String[] {
-                    evt[1],       // note
-                    start[2],     // start time
-                    evt[2],       // end time
-                    evt[3]        // timbre
-                });
+    // A remote note event, from a text line or a frame, by note and timbre id.
+    private static void handleNote(int op, int note, int timbre, long millis) {
+        String name = ToneGenerator.NOTES[note];
+        if (op == WireProtocol.NOTE_ON) {
+            // each remote player gets their own voice, even on a key that's already sounding
+            ToneGenerator.playNote(note, timbre, AudioEngine.REMOTE);
+            pressCount.merge(name, 1, Integer::sum);
+            Recorder r = recorder;
+            if (r != null) {
+                r.noteOn(Recorder.REMOTE, note, timbre);
+            }
+            SwingUtilities.invokeLater(() -> {
+                JButton key = keyButtons.get(name);
+                if (key != null) key.setBackground(Color.YELLOW);
+            });
+        } else if (op == WireProtocol.NOTE_OFF) {
+            ToneGenerator.stopNote(note, AudioEngine.REMOTE);
+            int count = pressCount.getOrDefault(name, 1) - 1;
+            if (count <= 0) {
+                pressCount.remove(name);
+            } else {
+                pressCount.put(name, count);
             }
+            Recorder r = recorder;
+            if (r != null) {
+                r.noteOff(Recorder.REMOTE, note);
+            }
+            SwingUtilities.invokeLater(() -> {
+                JButton key = keyButtons.get(name);
+                if (key != null) key.setBackground(name.contains("#") ? Color.BLACK : Color.WHITE);
+            });
         }
-    
-        return result;
     }
 
+
     public static void updateCurrentNoteLabel(String note) {
         SwingUtilities.invokeLater(() -> {
             if (currentNoteLabel != null) {
@@ -1,42 +1,155 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+// Usage: java PianoServer [--virtual | --nio [--loops=N]] [--port=N] [--queue=N] [--stats=S]
+//   default   - a reader and a writer thread per client, blocking I/O
+//   --virtual - the same, on virtual threads (Java 21+)
+//   --nio     - NioPianoServer: N selector loops (default: one per CPU) for all clients
+//   --queue   - messages a client may fall behind by before it is dropped
+//               (default 1024; chat is dropped past half of that)
+//   --stats   - print queue and fan-out numbers every S seconds
 public class PianoServer {
     private static final int PORT = 5190;
     private static final CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private static final AtomicLong overflowDisconnects = new AtomicLong();
+    private static ThreadFactory threads;
+    private static int queueLimit = 1024;
 
     public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(PORT);
-        System.out.println("Piano Server running on port " + PORT + "...");
+        boolean nio = false;
+        boolean virtual = false;
+        int port = PORT;
+        int loops = Runtime.getRuntime().availableProcessors();
+        int statsSeconds = 0;
+        for (String arg : args) {
+            if (arg.equals("--nio")) {
+                nio = true;
+            } else if (arg.equals("--virtual")) {
+                virtual = true;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--loops=")) {
+                loops = Integer.parseInt(arg.substring("--loops=".length()));
+            } else if (arg.startsWith("--queue=")) {
+                queueLimit = Integer.parseInt(arg.substring("--queue=".length()));
+            } else if (arg.startsWith("--stats=")) {
+                statsSeconds = Integer.parseInt(arg.substring("--stats=".length()));
+            } else {
+                System.err.println("Usage: java PianoServer [--virtual | --nio [--loops=N]] [--port=N]"
+                    + " [--queue=N] [--stats=S]");
+                System.exit(2);
+            }
+        }
+
+        if (nio) {
+            NioPianoServer server = new NioPianoServer(port, loops, queueLimit);
+            System.out.println("Piano Server running on port " + server.port() + " (nio, " + loops + " loops)...");
+            if (statsSeconds > 0) startStats(statsSeconds, server::stats);
+            server.run();
+            return;
+        }
+
+        threads = VirtualThreads.factory("client-", virtual);
+        if (statsSeconds > 0) {
+            startStats(statsSeconds, () -> {
+                List<OutboundQueue> queues = new ArrayList<>();
+                for (ClientHandler client : clients) queues.add(client.queue);
+                return OutboundQueue.report(queues, overflowDisconnects.get());
+            });
+        }
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Piano Server running on port " + serverSocket.getLocalPort()
+            + (VirtualThreads.isVirtual(threads) ? " (virtual threads)..." : "..."));
 
         while (true) {
             Socket socket = serverSocket.accept();
+            // the writer already sends all it has in one write
+            socket.setTcpNoDelay(true);
             ClientHandler handler = new ClientHandler(socket);
             clients.add(handler);
-            new Thread(handler).start();
+            threads.newThread(handler).start();
         }
     }
 
+    private static void startStats(int seconds, java.util.function.Supplier<String> report) {
+        Thread stats = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(seconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println(report.get());
+            }
+        }, "stats");
+        stats.setDaemon(true);
+        stats.start();
+    }
+
     static class ClientHandler implements Runnable {
         private final Socket socket;
-        private final BufferedReader in;
-        private final PrintWriter out;
+        private final WireProtocol.Reader in;
+        private final OutputStream out;
+        private final OutboundQueue queue = new OutboundQueue(queueLimit);
         private String username = "Anonymous";
+        // the client asked for frames (WireProtocol) and was told yes
+        private volatile boolean frames = false;
 
         public ClientHandler(Socket socket) throws IOException {
             this.socket = socket;
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
+            this.in = new WireProtocol.Reader(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        // Never blocks: the message waits in this client's queue for its
+        // writer, so a slow client can't hold up whoever is broadcasting.
+        public void sendMessage(OutboundQueue.Message msg) {
+            if (queue.offer(msg) == OutboundQueue.OVERFLOW) {
+                overflowDisconnects.incrementAndGet();
+                System.out.println("Disconnecting " + username + ": too far behind");
+                closeConnection();
+            }
         }
 
-        public synchronized void sendMessage(String msg) {
-            out.println(msg);
+        // The client's writer: everything queued since the last write goes
+        // out as one socket write.
+        private void writeLoop() {
+            List<OutboundQueue.Message> batch = new ArrayList<>();
+            byte[] buffer = new byte[4096];
+            try {
+                while (queue.takeAll(batch)) {
+                    int size = 0;
+                    for (OutboundQueue.Message msg : batch) {
+                        int length = msg.bytes.remaining();
+                        if (size + length > buffer.length) {
+                            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+                        }
+                        msg.bytes.duplicate().get(buffer, size, length);
+                        size += length;
+                    }
+                    out.write(buffer, 0, size);
+                    queue.written(batch);
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                closeConnection();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         @Override
         public void run() {
+            threads.newThread(this::writeLoop).start();
             try {
                 // first message receive the username
                 username = in.readLine();
@@ -51,8 +164,13 @@ public class PianoServer {
                 }
                 broadcastSystemMessage(username + " has entered the room.");
 
-                String msg;
-                while ((msg = in.readLine()) != null) {
+                int kind;
+                while ((kind = in.next(frames)) != WireProtocol.Reader.EOF) {
+                    if (kind == WireProtocol.Reader.FRAME) {
+                        broadcastFrame(in.frame());
+                        continue;
+                    }
+                    String msg = in.line();
                     int firstComma = msg.indexOf(',');
                     // System.out.println("[SERVER RECEIVE] Got: " + msg);
                     if (firstComma == -1) {
@@ -66,6 +184,10 @@ public class PianoServer {
                         broadcastMusicMessage(content);
                     } else if ("CHAT".equals(category)) {
                         broadcastChatMessage(username + ": " + content);
+                    } else if (WireProtocol.HELLO.equals(msg)) {
+                        // answered before any frame can be queued for us
+                        sendMessage(encode(WireProtocol.HELLO, false));
+                        frames = true;
                     }
                 }
             } catch (IOException e) {
@@ -74,35 +196,60 @@ public class PianoServer {
                 clients.remove(this);
                 broadcastSystemMessage(username + " has left the room.");
                 closeConnection();
+                System.out.println(username + ": " + queue.summary());
             }
         }
 
+        private static OutboundQueue.Message encode(String line, boolean chat) {
+            return new OutboundQueue.Message((line + "\n").getBytes(StandardCharsets.UTF_8), chat);
+        }
+
         private void broadcastMusicMessage(String musicContent) {
+            OutboundQueue.Message msg = encode("MUSIC," + musicContent, false);
             for (ClientHandler client : clients) {
                 if (client != this) {
-                    client.sendMessage("MUSIC," + musicContent);
+                    client.sendMessage(msg);
                     // System.out.println("[SERVER BROADCAST] Broadcasting to all: MUSIC," + musicContent);
                 }
             }
         }
 
+        // Frames go to clients that read them as they came, without being
+        // decoded; the rest get the same events as text, made once.
+        private void broadcastFrame(byte[] frame) {
+            OutboundQueue.Message binary = new OutboundQueue.Message(frame, false);
+            OutboundQueue.Message text = null;
+            for (ClientHandler client : clients) {
+                if (client == this) continue;
+                if (client.frames) {
+                    client.sendMessage(binary);
+                } else {
+                    if (text == null) text = new OutboundQueue.Message(WireProtocol.toText(ByteBuffer.wrap(frame)), false);
+                    if (text.bytes.hasRemaining()) client.sendMessage(text);
+                }
+            }
+        }
+
         private void broadcastChatMessage(String chatContent) {
+            OutboundQueue.Message msg = encode("CHAT," + chatContent, true);
             for (ClientHandler client : clients) {
-                client.sendMessage("CHAT," + chatContent);
+                client.sendMessage(msg);
             }
         }
 
         private void broadcastSystemMessage(String systemMessage) {
             String fullMessage = systemMessage + " (Current users: " + clients.size() + ")";
+            OutboundQueue.Message msg = encode("CHAT,[System]: " + fullMessage, true);
             for (ClientHandler client : clients) {
-                client.sendMessage("CHAT,[System]: " + fullMessage);
+                client.sendMessage(msg);
             }
         }
 
         private void closeConnection() {
+            queue.close();
             try {
                 socket.close();
             } catch (IOException ignored) {}
         }
     }
-}
\ No newline at end of file
+}
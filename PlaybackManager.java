@@ -1,5 +1,7 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.*;
 
@@ -10,19 +12,49 @@ public class PlaybackManager {
     private final JProgressBar playbackBar;
     private final JButton playResumeBtn;
 
-    private final Set<String> activePlaybackNotes = ConcurrentHashMap.newKeySet();
-    private final Map<String, Long> activeNoteEndTimes = new ConcurrentHashMap<>();
-    private final Map<String, String> activeNoteTimbres = new ConcurrentHashMap<>();
-    private final Map<String, Long> activeNoteStartTimes = new ConcurrentHashMap<>();
+    // Sounding notes by score index. Each one owns the pending note-off on the
+    // shared scheduler, so pause and stop can cancel it.
+    private final Map<Integer, ActiveNote> activeNotes = new ConcurrentHashMap<>();
+    // one thread handles every note-off, however dense the score is
+    private final ScheduledThreadPoolExecutor noteOffScheduler;
     private final AtomicLong playbackStart = new AtomicLong();
     private final Object playbackLock = new Object();
 
+    // Playback runs on the audio engine's sample clock unless
+    // -Dpiano.playback=timer asks for the wall-clock scheduler.
+    private static final boolean USE_SEQUENCER =
+        !"timer".equalsIgnoreCase(System.getProperty("piano.playback"));
+
+    private volatile Score loadedScore;
+    private volatile File loadedFile; // played as a stream instead of a Score
+    private volatile Score currentScore;
+    private volatile Sequencer sequencer;
+    private volatile Thread playbackThread;
     private volatile boolean isPaused = false;
     private volatile boolean stopRequested = false;
 
+    // where the next play() starts, set by seeking while stopped
+    private volatile long startAt = 0;
+    // A-B loop in ms; off while loopEnd <= loopStart
+    private volatile long loopStart = 0;
+    private volatile long loopEnd = -1;
+    // timer mode only; the sequencer takes seeks itself
+    private final AtomicLong pendingSeek = new AtomicLong(-1);
+
     private long pauseStartTime = 0;
     private long totalPausedTime = 0;
 
+    private static class ActiveNote {
+        final int index;
+        final long end;
+        volatile ScheduledFuture<?> noteOff;
+
+        ActiveNote(int index, long end) {
+            this.index = index;
+            this.end = end;
+        }
+    }
+
     public PlaybackManager(Map<String, Double> whiteKeys,
                            Map<String, Double> blackKeys,
                            Map<String, JButton> keyButtons,
@@ -33,86 +65,202 @@ public class PlaybackManager {
         this.keyButtons = keyButtons;
         this.playbackBar = playbackBar;
         this.playResumeBtn = playResumeBtn;
+
+        noteOffScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "playback-note-off");
+            t.setDaemon(true);
+            return t;
+        });
+        noteOffScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    // Compiles the events once; play, seek and loops then all work on the
+    // same Score. A loop region that is set stays set.
+    public void load(List<String[]> events) {
+        load(Score.compile(events));
+    }
+
+    public void load(Score score) {
+        loadedScore = score;
+        loadedFile = null;
+        startAt = 0;
+    }
+
+    // For recordings too big to hold: play() reads the file as it goes, with
+    // memory bounded by ScoreStream's window. Needs the audio engine's
+    // sequencer; seeking and loops don't apply.
+    public void loadStream(File file) {
+        loadedFile = file;
+        loadedScore = null;
+        startAt = 0;
+    }
+
+    public boolean hasLoaded() {
+        return loadedFile != null || (loadedScore != null && !loadedScore.isEmpty());
+    }
+
+    public void play() {
+        File file = loadedFile;
+        if (file != null) {
+            playStream(file);
+            return;
+        }
+        Score score = loadedScore;
+        if (score != null) play(score);
     }
 
     public void play(List<String[]> events) {
-        if (events.isEmpty()) return;
+        load(events);
+        play();
+    }
+
+    public void play(Score score) {
+        if (score.isEmpty()) return;
+        resetForPlay();
+        currentScore = score;
+
+        AudioEngine engine = ToneGenerator.getEngine();
+        Thread t = USE_SEQUENCER && engine != null
+            ? new Thread(() -> runSequenced(engine, score))
+            : new Thread(() -> runPlayback(score));
+        playbackThread = t;
+        t.start();
+    }
+
+    private void playStream(File file) {
+        AudioEngine engine = ToneGenerator.getEngine();
+        if (engine == null) return;
+        resetForPlay();
+        currentScore = null;
+
+        Thread t = new Thread(() -> runStreamed(engine, file));
+        playbackThread = t;
+        t.start();
+    }
+
+    private void resetForPlay() {
+        Thread previous = playbackThread;
+        if (previous != null && previous.isAlive()) {
+            stop();
+            try {
+                previous.join(200);
+            } catch (InterruptedException ignored) {}
+        }
 
         stopRequested = false;
         isPaused = false;
         totalPausedTime = 0;
         pauseStartTime = 0;
-        playbackStart.set(System.currentTimeMillis());
+    }
+
+    // true from play() until the score ends or stop() is called, paused or not
+    public boolean isActive() {
+        Thread t = playbackThread;
+        return t != null && t.isAlive();
+    }
+
+    // length of the playing score, or of the loaded one when stopped
+    public long duration() {
+        Score score = isActive() ? currentScore : loadedScore;
+        Sequencer seq = sequencer;
+        if (seq != null && seq.isStreaming()) return 0;
+        return score == null ? 0 : score.duration();
+    }
 
-        new Thread(() -> runPlayback(events)).start();
+    public long positionMillis() {
+        Sequencer seq = sequencer;
+        if (seq != null) return seq.positionMillis();
+        if (!isActive()) return startAt;
+        synchronized (playbackLock) {
+            long now = isPaused ? pauseStartTime : System.currentTimeMillis();
+            return Math.max(0, now - playbackStart.get() - totalPausedTime);
+        }
+    }
+
+    // Jumps to ms while playing (paused playback stays paused), or sets where
+    // the next play() starts.
+    public void seek(long ms) {
+        long target = Math.max(0, ms);
+        synchronized (playbackLock) {
+            Sequencer seq = sequencer;
+            if (seq != null) {
+                seq.seek(target);
+            } else if (isActive()) {
+                pendingSeek.set(target);
+            } else {
+                startAt = target;
+            }
+        }
+    }
+
+    // Repeats [startMs, endMs) until cleared, without recompiling anything.
+    public void setLoop(long startMs, long endMs) {
+        synchronized (playbackLock) {
+            loopStart = Math.max(0, Math.min(startMs, endMs));
+            loopEnd = Math.max(startMs, endMs);
+            Sequencer seq = sequencer;
+            if (seq != null) seq.setLoop(loopStart, loopEnd);
+        }
+    }
+
+    public void clearLoop() {
+        synchronized (playbackLock) {
+            loopEnd = -1;
+            Sequencer seq = sequencer;
+            if (seq != null) seq.clearLoop();
+        }
+    }
+
+    public boolean hasLoop() {
+        return loopEnd > loopStart;
     }
 
-    
+
     public void togglePause() {
         synchronized (playbackLock) {
             isPaused = !isPaused;
-    
+
+            Sequencer seq = sequencer;
+            if (seq != null) {
+                // the engine freezes the song clock; sounding keys stay lit
+                boolean paused = isPaused;
+                seq.setPaused(paused);
+                SwingUtilities.invokeLater(() -> playResumeBtn.setText(paused ? "▶" : "⏸"));
+                return;
+            }
+
             if (isPaused) {
                 pauseStartTime = System.currentTimeMillis();
                 SwingUtilities.invokeLater(() -> playResumeBtn.setText("▶"));
-    
-                // stop all active notes
-                long logicalNow = pauseStartTime - playbackStart.get() - totalPausedTime;
-    
-                for (String note : new HashSet<>(activePlaybackNotes)) {
-                    long end = activeNoteEndTimes.getOrDefault(note, logicalNow);
-                    long remaining = end - logicalNow;
-    
-                    if (remaining <= 0) continue;
-    
-                    activeNoteEndTimes.put(note, logicalNow + remaining);
-                    activeNoteStartTimes.put(note, logicalNow);
-    
-                    ToneGenerator.stopTone(note);
-                    JButton btn = keyButtons.get(note);
-                    if (btn != null) {
-                        btn.setBackground(note.contains("#") ? java.awt.Color.BLACK : java.awt.Color.WHITE);
+
+                // silence sounding notes; their remaining length is kept for resume
+                for (ActiveNote a : activeNotes.values()) {
+                    if (a.noteOff.cancel(false)) {
+                        silence(a.index);
                     }
                 }
-    
+
             } else {
                 long resumeTime = System.currentTimeMillis();
                 totalPausedTime += (resumeTime - pauseStartTime);
                 pauseStartTime = 0;
                 SwingUtilities.invokeLater(() -> playResumeBtn.setText("⏸"));
-    
+
                 // resume paused notes
                 long logicalNow = resumeTime - playbackStart.get() - totalPausedTime;
-    
-                for (String note : new HashSet<>(activePlaybackNotes)) {
-                    long end = activeNoteEndTimes.getOrDefault(note, logicalNow + 1);
-                    long remaining = end - logicalNow;
-    
+                Score score = currentScore;
+
+                for (ActiveNote a : activeNotes.values()) {
+                    long remaining = a.end - logicalNow;
                     if (remaining <= 0) {
-                        activePlaybackNotes.remove(note);
+                        activeNotes.remove(a.index);
                         continue;
                     }
-    
-                    String timbre = activeNoteTimbres.getOrDefault(note, "sine");
-                    double freq = whiteKeys.getOrDefault(note, blackKeys.getOrDefault(note, -1.0));
-    
-                    if (freq > 0) {
-                        ToneGenerator.playToneContinuous(freq, note, timbre);
-                        JButton btn = keyButtons.get(note);
-                        if (btn != null) {
-                            btn.setBackground(java.awt.Color.YELLOW);
-                        }
-    
-                        new Thread(() -> {
-                            try {
-                                Thread.sleep(remaining);
-                            } catch (InterruptedException ignored) {}
-    
-                            stopNow(note);
-                        }).start();
-                    }
+                    ToneGenerator.playNote(score.note(a.index), score.timbre(a.index), AudioEngine.PLAYBACK);
+                    highlight(score.noteName(a.index));
+                    a.noteOff = noteOffScheduler.schedule(() -> stopNow(a.index), remaining, TimeUnit.MILLISECONDS);
                 }
-    
+
                 playbackLock.notifyAll();
             }
         }
@@ -121,22 +269,41 @@ public class PlaybackManager {
     public void stop() {
         stopRequested = true;
         synchronized (playbackLock) {
+            Sequencer seq = sequencer;
+            if (seq != null) {
+                seq.stop();
+                sequencer = null;
+            }
+            if (isPaused) {
+                activeNotes.clear(); // already silenced when the pause started
+            } else {
+                for (ActiveNote a : activeNotes.values()) {
+                    if (a.noteOff.cancel(false)) {
+                        stopNow(a.index);
+                    }
+                }
+            }
             playbackLock.notifyAll();
         }
     }
 
-    private void runPlayback(List<String[]> events) {
-        boolean[] played = new boolean[events.size()];
-
-        long totalDuration = events.stream()
-                .mapToLong(e -> Long.parseLong(e[2]))
-                .max().orElse(0);
+    // The score is sorted by start time, so each tick only starts the notes that
+    // became due since the last one and moves the cursor past them. Seeks and
+    // loop jumps reset the cursor and pick up notes already under way.
+    private void runPlayback(Score score) {
+        int[] sounding = new int[score.size()];
+        long totalDuration = score.duration();
+        int cursor;
+        synchronized (playbackLock) {
+            cursor = jumpTo(score, startAt, sounding);
+            startAt = 0;
+        }
 
         while (true) {
             if (stopRequested) break;
 
-            long logicalTime = System.currentTimeMillis() - playbackStart.get() - totalPausedTime;
-
+            long logicalTime;
+            boolean looping;
             synchronized (playbackLock) {
                 if (isPaused) {
                     try {
@@ -144,72 +311,213 @@ public class PlaybackManager {
                     } catch (InterruptedException ignored) {}
                     continue;
                 }
-            }
 
-            for (int i = 0; i < events.size(); i++) {
-                if (played[i]) continue;
-
-                String[] evt = events.get(i);
-                String note = evt[0];
-                long start = Long.parseLong(evt[1]);
-                long end = Long.parseLong(evt[2]);
-                String timbre = evt[3];
-
-                if (logicalTime >= start) {
-                    played[i] = true;
-
-                    double freq = whiteKeys.getOrDefault(note, blackKeys.getOrDefault(note, -1.0));
-                    if (freq > 0) {
-                        ToneGenerator.playToneContinuous(freq, note, timbre);
-                        activePlaybackNotes.add(note);
-                        activeNoteStartTimes.put(note, logicalTime);
-                        activeNoteEndTimes.put(note, end);
-                        activeNoteTimbres.put(note, timbre);
-
-                        JButton btn = keyButtons.get(note);
-                        if (btn != null) SwingUtilities.invokeLater(() -> btn.setBackground(java.awt.Color.YELLOW));
-
-                        long safeSleep = end - logicalTime;
-                        if (safeSleep > 0) {
-                            new Thread(() -> stopAfterDelay(note, safeSleep)).start();
-                        } else {
-                            stopNow(note);
-                        }
-                    }
+                logicalTime = System.currentTimeMillis() - playbackStart.get() - totalPausedTime;
+                looping = loopEnd > loopStart;
+                long seek = pendingSeek.getAndSet(-1);
+                if (seek < 0 && looping && logicalTime >= loopEnd) {
+                    seek = loopStart;
+                }
+                if (seek >= 0) {
+                    cursor = jumpTo(score, seek, sounding);
+                    logicalTime = seek;
+                }
+
+                while (cursor < score.size() && score.start(cursor) <= logicalTime) {
+                    int i = cursor++;
+                    long remaining = score.end(i) - logicalTime;
+                    if (remaining <= 0) continue;
+                    startNote(score, i, remaining);
                 }
             }
 
             int percent = (int) (100.0 * logicalTime / totalDuration);
             SwingUtilities.invokeLater(() -> playbackBar.setValue(Math.min(percent, 100)));
 
-            if (logicalTime >= totalDuration) break;
+            if (!looping && logicalTime >= totalDuration) break;
 
             try {
                 Thread.sleep(10);
             } catch (InterruptedException ignored) {}
         }
 
+        finishPlayback();
+    }
+
+    // Silences what is sounding, restarts the clock at ms and starts the notes
+    // that began earlier but are still held there. Returns the new cursor.
+    private int jumpTo(Score score, long ms, int[] sounding) {
+        for (ActiveNote a : activeNotes.values()) {
+            if (a.noteOff.cancel(false)) {
+                stopNow(a.index);
+            }
+        }
+        playbackStart.set(System.currentTimeMillis() - ms - totalPausedTime);
+        int count = score.soundingAt(ms, sounding);
+        for (int k = 0; k < count; k++) {
+            int i = sounding[k];
+            startNote(score, i, score.end(i) - ms);
+        }
+        return score.firstStartingAtOrAfter(ms);
+    }
+
+    private void startNote(Score score, int i, long remaining) {
+        ToneGenerator.playNote(score.note(i), score.timbre(i), AudioEngine.PLAYBACK);
+        highlight(score.noteName(i));
+
+        ActiveNote a = new ActiveNote(i, score.end(i));
+        activeNotes.put(i, a);
+        a.noteOff = noteOffScheduler.schedule(() -> stopNow(i), remaining, TimeUnit.MILLISECONDS);
+    }
+
+    // Sequencer mode: the engine plays the notes, this thread only follows the
+    // song position to light keys and move the progress bar.
+    private void runSequenced(AudioEngine engine, Score score) {
+        Sequencer seq = new Sequencer(score);
+        synchronized (playbackLock) {
+            seq.seek(startAt);
+            startAt = 0;
+            if (loopEnd > loopStart) seq.setLoop(loopStart, loopEnd);
+            seq.setPaused(isPaused);
+            if (stopRequested) seq.stop();
+            else sequencer = seq;
+        }
+        engine.startSequencer(seq);
+
+        PriorityQueue<Integer> lit = new PriorityQueue<>(Comparator.comparingLong(score::end));
+        int[] sounding = new int[score.size()];
+        int cursor = 0;
+        int seenJumps = 0;
+        long totalDuration = score.duration();
+        while (sequencer == seq && !seq.isFinished()) {
+            // read the jump count first, so a jump after it is caught next tick
+            int jumps = seq.jumpCount();
+            long now = seq.positionMillis();
+            if (jumps != seenJumps) {
+                seenJumps = jumps;
+                while (!lit.isEmpty()) {
+                    unhighlight(score.noteName(lit.poll()));
+                }
+                int count = score.soundingAt(now, sounding);
+                for (int k = 0; k < count; k++) {
+                    highlight(score.noteName(sounding[k]));
+                    lit.add(sounding[k]);
+                }
+                cursor = score.firstStartingAtOrAfter(now);
+            }
+            while (cursor < score.size() && score.start(cursor) <= now) {
+                if (score.end(cursor) > now) {
+                    highlight(score.noteName(cursor));
+                    lit.add(cursor);
+                }
+                cursor++;
+            }
+            while (!lit.isEmpty() && score.end(lit.peek()) <= now) {
+                unhighlight(score.noteName(lit.poll()));
+            }
+
+            int percent = (int) (100.0 * now / Math.max(1, totalDuration));
+            SwingUtilities.invokeLater(() -> playbackBar.setValue(Math.min(percent, 100)));
+
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ignored) {}
+        }
+
+        while (!lit.isEmpty()) {
+            unhighlight(score.noteName(lit.poll()));
+        }
+        synchronized (playbackLock) {
+            if (sequencer == seq) sequencer = null;
+        }
+        finishPlayback();
+    }
+
+    // Streaming mode: the sequencer pulls chunks from the file as it plays.
+    // Keys follow the sequencer's held counts and the bar shows how much of
+    // the file has been played.
+    private void runStreamed(AudioEngine engine, File file) {
+        ScoreStream stream = null;
+        Sequencer seq;
+        try {
+            stream = ScoreStream.open(file);
+            seq = new Sequencer(stream);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            if (stream != null) stream.close();
+            finishPlayback();
+            return;
+        }
+        synchronized (playbackLock) {
+            seq.setPaused(isPaused);
+            if (stopRequested) seq.stop();
+            else sequencer = seq;
+        }
+        engine.startSequencer(seq);
+
+        boolean[] lit = new boolean[ToneGenerator.NOTES.length];
+        while (sequencer == seq && !seq.isFinished()) {
+            seq.position(); // makes the held counts below current
+            for (int note = 0; note < lit.length; note++) {
+                boolean held = seq.heldCount(note) > 0;
+                if (held != lit[note]) {
+                    lit[note] = held;
+                    if (held) highlight(ToneGenerator.NOTES[note]);
+                    else unhighlight(ToneGenerator.NOTES[note]);
+                }
+            }
+
+            int percent = (int) (100 * stream.progress());
+            SwingUtilities.invokeLater(() -> playbackBar.setValue(percent));
+
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ignored) {}
+        }
+
+        for (int note = 0; note < lit.length; note++) {
+            if (lit[note]) unhighlight(ToneGenerator.NOTES[note]);
+        }
+        stream.close();
+        if (stream.lateNotes() > 0 || seq.underruns() > 0) {
+            System.err.println("Streamed " + file.getName() + ": " + stream.notesRead() + " notes, "
+                + stream.lateNotes() + " out of order beyond the window, " + seq.underruns() + " underruns");
+        }
+        synchronized (playbackLock) {
+            if (sequencer == seq) sequencer = null;
+        }
+        finishPlayback();
+    }
+
+    // resets the bar and button, unless a newer play() has taken over
+    private void finishPlayback() {
+        if (playbackThread != Thread.currentThread()) return;
         SwingUtilities.invokeLater(() -> {
             playbackBar.setValue(0);
             playResumeBtn.setText("▶");
         });
     }
 
-    private void stopAfterDelay(String note, long delay) {
-        try {
-            Thread.sleep(delay);
-        } catch (InterruptedException ignored) {}
-        stopNow(note);
+    private void stopNow(int index) {
+        if (activeNotes.remove(index) != null) {
+            silence(index);
+        }
+    }
+
+    private void silence(int index) {
+        Score score = currentScore;
+        ToneGenerator.stopNote(score.note(index), AudioEngine.PLAYBACK);
+        unhighlight(score.noteName(index));
     }
 
-    private void stopNow(String note) {
-        ToneGenerator.stopTone(note);
-        activePlaybackNotes.remove(note);
-        activeNoteEndTimes.remove(note);
-        activeNoteStartTimes.remove(note);
-        activeNoteTimbres.remove(note);
+    private void unhighlight(String note) {
         JButton btn = keyButtons.get(note);
         if (btn != null) SwingUtilities.invokeLater(() ->
                 btn.setBackground(note.contains("#") ? java.awt.Color.BLACK : java.awt.Color.WHITE));
     }
-}
\ No newline at end of file
+
+    private void highlight(String note) {
+        JButton btn = keyButtons.get(note);
+        if (btn != null) SwingUtilities.invokeLater(() -> btn.setBackground(java.awt.Color.YELLOW));
+    }
+}
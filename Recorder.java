@@ -0,0 +1,159 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Records one session of notes as they are played, from any thread: the EDT
+// for keys and mouse, the network thread for remote players.
+//
+// The log is a list of fixed segments of primitive rows that only grows: a
+// note-on claims the next row with one atomic increment and fills it in, and
+// a new segment is swapped in with a CAS the first time a row lands in it, so
+// appends never lock, copy or box. Each row is one note, paired as it is
+// played: the note-on writes its start and remembers the row for its key,
+// and the note-off just fills in that row's end. Stopping only flips a flag.
+//
+// Times are System.nanoTime() offsets from the start of the session.
+public class Recorder {
+    public static final int LOCAL = 0;
+    public static final int REMOTE = 1;
+
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SEGMENT_ROWS = 1 << SEGMENT_SHIFT;
+    private static final int MAX_SEGMENTS = 1 << 14; // 67M notes
+
+    // two longs per row: start + 1 << 9 | timbre << 6 | note, then end + 1.
+    // 0 means not written yet, or for the end still sounding
+    private final AtomicReferenceArray<AtomicLongArray> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    private final AtomicInteger rows = new AtomicInteger();
+    // row sounding per source and note id, or -1
+    private final AtomicIntegerArray open = new AtomicIntegerArray(2 * ToneGenerator.NOTES.length);
+    private final boolean includeRemote;
+    private final long startNanos;
+    private volatile long stopNanos = -1;
+
+    public Recorder(boolean includeRemote) {
+        this.includeRemote = includeRemote;
+        segments.set(0, new AtomicLongArray(2 * SEGMENT_ROWS));
+        for (int i = 0; i < open.length(); i++) {
+            open.set(i, -1);
+        }
+        this.startNanos = System.nanoTime();
+    }
+
+    public boolean isRecording() {
+        return stopNanos < 0;
+    }
+
+    public void stop() {
+        if (stopNanos < 0) stopNanos = System.nanoTime() - startNanos;
+    }
+
+    // A second note-on for a key that is still sounding ends the first there.
+    public void noteOn(int source, int note, int timbre) {
+        if (!accepts(source, note)) return;
+        long now = System.nanoTime() - startNanos;
+        int row = rows.getAndIncrement();
+        if ((row >>> SEGMENT_SHIFT) >= MAX_SEGMENTS) {
+            rows.decrementAndGet();
+            return;
+        }
+        AtomicLongArray segment = segment(row);
+        int at = 2 * (row & (SEGMENT_ROWS - 1));
+        segment.set(at, ((now + 1) << 9) | ((long) timbre << 6) | note);
+        int previous = open.getAndSet(source * ToneGenerator.NOTES.length + note, row);
+        if (previous >= 0) end(previous, now);
+    }
+
+    public void noteOff(int source, int note) {
+        if (!accepts(source, note)) return;
+        long now = System.nanoTime() - startNanos;
+        int row = open.getAndSet(source * ToneGenerator.NOTES.length + note, -1);
+        if (row >= 0) end(row, now);
+    }
+
+    // by name, as the keyboard and the network see notes
+    public void noteOn(int source, String note, String timbre) {
+        noteOn(source, ToneGenerator.noteId(note), ToneGenerator.timbreId(timbre));
+    }
+
+    public void noteOff(int source, String note) {
+        noteOff(source, ToneGenerator.noteId(note));
+    }
+
+    private boolean accepts(int source, int note) {
+        return stopNanos < 0 && note >= 0 && (source == LOCAL || includeRemote);
+    }
+
+    private void end(int row, long now) {
+        segment(row).compareAndSet(2 * (row & (SEGMENT_ROWS - 1)) + 1, 0, now + 1);
+    }
+
+    private AtomicLongArray segment(int row) {
+        int index = row >>> SEGMENT_SHIFT;
+        AtomicLongArray segment = segments.get(index);
+        if (segment == null) {
+            segments.compareAndSet(index, null, new AtomicLongArray(2 * SEGMENT_ROWS));
+            segment = segments.get(index);
+        }
+        return segment;
+    }
+
+    // notes recorded so far
+    public int size() {
+        return Math.min(rows.get(), MAX_SEGMENTS * SEGMENT_ROWS);
+    }
+
+    // The session so far in start order, times in ms. Notes still held end
+    // at the stop, or now if still recording.
+    public Score toScore() {
+        long now = System.nanoTime() - startNanos;
+        int n = size();
+        int[] notes = new int[n];
+        int[] timbres = new int[n];
+        long[] starts = new long[n];
+        long[] ends = new long[n];
+        int size = 0;
+        for (int row = 0; row < n; row++) {
+            if (!isWritten(row)) continue; // claimed but not filled in yet
+            notes[size] = note(row);
+            timbres[size] = timbre(row);
+            starts[size] = startMillis(row);
+            long end = endMillis(row);
+            ends[size] = end >= 0 ? end : Math.max(starts[size], now / 1_000_000);
+            size++;
+        }
+        // rows are claimed in time order per thread; across threads two may swap
+        return Score.sorted(notes, timbres, starts, ends, size);
+    }
+
+    // Row access for readers that follow the log as it grows, like the
+    // journal. A row may be claimed before its note-on is written.
+    boolean isWritten(int row) {
+        return onWord(row) != 0;
+    }
+
+    int note(int row) {
+        return (int) (onWord(row) & 0x3F);
+    }
+
+    int timbre(int row) {
+        return (int) ((onWord(row) >>> 6) & 0x7);
+    }
+
+    long startMillis(int row) {
+        return ((onWord(row) >>> 9) - 1) / 1_000_000;
+    }
+
+    // -1 while the note is still sounding; notes held at the stop end there
+    long endMillis(int row) {
+        long end = segment(row).get(2 * (row & (SEGMENT_ROWS - 1)) + 1);
+        long nanos = end != 0 ? end - 1 : stopNanos;
+        if (nanos < 0) return -1;
+        return Math.max(startMillis(row), nanos / 1_000_000);
+    }
+
+    private long onWord(int row) {
+        return segment(row).get(2 * (row & (SEGMENT_ROWS - 1)));
+    }
+}
@@ -0,0 +1,637 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import com.sun.management.ThreadMXBean;
+
+// Checks and measurements for the recording formats and the recorder:
+// parsing, the binary format, MIDI import and export, and journaling.
+// Usage: java RecordingBenchmark <check>
+//   parse     - RecordingReader (sequential and parallel) vs String.split, and error lines
+//   binary    - binary vs text recording size and load time, round trip and checksums
+//   midi      - MIDI export/import round trip, and merged vs load-and-sort import time
+//   recorder  - Recorder vs the String[] event list under 4 threads, stop cost, allocation
+//   journal   - per-event cost of journaling a take, and recovery after a killed JVM
+public class RecordingBenchmark {
+    public static void main(String[] args) throws Exception {
+        String check = args.length > 0 ? args[0] : "parse";
+        switch (check) {
+            case "parse":
+                System.exit(parseCheck(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000) ? 0 : 1);
+                break;
+            case "binary":
+                System.exit(binaryCheck(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000) ? 0 : 1);
+                break;
+            case "midi":
+                System.exit(midiCheck(args.length > 1 ? Integer.parseInt(args[1]) : 300_000) ? 0 : 1);
+                break;
+            case "recorder":
+                System.exit(recorderCheck(args.length > 1 ? Integer.parseInt(args[1]) : 250_000) ? 0 : 1);
+                break;
+            case "journal":
+                System.exit(journalCheck(args.length > 1 ? Integer.parseInt(args[1]) : 20_000) ? 0 : 1);
+                break;
+            case "journal-crash":
+                journalCrashChild(new File(args[1]), Integer.parseInt(args[2]));
+                break;
+            default:
+                System.err.println("Unknown check: " + check);
+                System.exit(2);
+        }
+    }
+
+    // Times the old split path, RecordingReader and its parallel mode on the
+    // same file and checks they produce the same Score. Then corrupts one row
+    // and checks both modes report its line.
+    static boolean parseCheck(int notes) throws Exception {
+        File file = File.createTempFile("parse-check", ".txt");
+        file.deleteOnExit();
+        writeSession(file, notes, 9);
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+        Score split = null, single = null, parallel = null;
+        long splitNanos = Long.MAX_VALUE, singleNanos = Long.MAX_VALUE, parallelNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            split = Score.compile(splitRead(file));
+            long t1 = System.nanoTime();
+            single = RecordingReader.read(file);
+            long t2 = System.nanoTime();
+            parallel = RecordingReader.readParallel(file, threads);
+            long t3 = System.nanoTime();
+            splitNanos = Math.min(splitNanos, t1 - t0);
+            singleNanos = Math.min(singleNanos, t2 - t1);
+            parallelNanos = Math.min(parallelNanos, t3 - t2);
+        }
+        boolean same = sameScore(split, single) && sameScore(split, parallel);
+        double mb = file.length() / 1e6;
+        System.out.printf("parse: %d rows, %.1f MB, best of 5 (%d cpus)%n", notes, mb,
+            Runtime.getRuntime().availableProcessors());
+        System.out.printf("  split + compile   %7.1f ms %6.1f MB/s%n", splitNanos / 1e6, mb / (splitNanos / 1e9));
+        System.out.printf("  RecordingReader   %7.1f ms %6.1f MB/s%n", singleNanos / 1e6, mb / (singleNanos / 1e9));
+        System.out.printf("  parallel, %d thr   %7.1f ms %6.1f MB/s%n", threads, parallelNanos / 1e6, mb / (parallelNanos / 1e9));
+
+        // break a row about two thirds in, so it lands in a later slice
+        List<String> lines = Files.readAllLines(file.toPath());
+        int badLine = lines.size() * 2 / 3;
+        lines.set(badLine - 1, "H4,100,200,piano");
+        Files.write(file.toPath(), lines);
+        long singleLine = errorLine(() -> RecordingReader.read(file));
+        long parallelLine = errorLine(() -> RecordingReader.readParallel(file, threads));
+        boolean reported = singleLine == badLine && parallelLine == badLine;
+        System.out.printf("  bad row at line %d reported at line %d (sequential) and %d (parallel)%n",
+            badLine, singleLine, parallelLine);
+
+        if (!same) System.out.println("  FAILED: parsers disagree");
+        return same && reported;
+    }
+
+    // Converts a session to the binary format and back, checking the text
+    // comes back byte for byte, then compares file sizes and load times. Then
+    // damages one block and cuts the file short: strict reads must fail, and
+    // lenient ones lose only the damaged rows. Last, a block with a good
+    // checksum but rows out of range.
+    static boolean binaryCheck(int notes) throws Exception {
+        File text = File.createTempFile("binary-check", ".txt");
+        File binary = File.createTempFile("binary-check", BinaryRecording.EXTENSION);
+        File back = File.createTempFile("binary-check", ".txt");
+        text.deleteOnExit();
+        binary.deleteOnExit();
+        back.deleteOnExit();
+        writeSession(text, notes, 11);
+        BinaryRecording.toBinary(text, binary);
+        BinaryRecording.toText(binary, back);
+        boolean lossless = Arrays.equals(Files.readAllBytes(text.toPath()),
+            Files.readAllBytes(back.toPath()));
+
+        Score split = null, fromText = null, fromBinary = null;
+        long splitNanos = Long.MAX_VALUE, textNanos = Long.MAX_VALUE, binaryNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            split = Score.compile(splitRead(text));
+            long t1 = System.nanoTime();
+            fromText = RecordingReader.read(text);
+            long t2 = System.nanoTime();
+            fromBinary = RecordingReader.read(binary);
+            long t3 = System.nanoTime();
+            splitNanos = Math.min(splitNanos, t1 - t0);
+            textNanos = Math.min(textNanos, t2 - t1);
+            binaryNanos = Math.min(binaryNanos, t3 - t2);
+        }
+        boolean same = sameScore(split, fromBinary) && sameScore(fromText, fromBinary);
+        System.out.printf("binary: %d rows, best of 5%n", notes);
+        System.out.printf("  text    %9d bytes %5.1f bytes/row%n", text.length(), text.length() / (double) notes);
+        System.out.printf("  binary  %9d bytes %5.1f bytes/row, %.1fx smaller%n", binary.length(),
+            binary.length() / (double) notes, text.length() / (double) binary.length());
+        System.out.printf("  load: split + compile %7.1f ms, RecordingReader %7.1f ms, binary %7.1f ms%n",
+            splitNanos / 1e6, textNanos / 1e6, binaryNanos / 1e6);
+        System.out.printf("  binary loads %.1fx faster than split, %.1fx faster than RecordingReader%n",
+            splitNanos / (double) binaryNanos, textNanos / (double) binaryNanos);
+        System.out.printf("  text -> binary -> text %s%n", lossless ? "identical" : "DIFFERS");
+
+        // the session file is in note-off order; saveRecording writes start order
+        File ordered = File.createTempFile("binary-check", BinaryRecording.EXTENSION);
+        ordered.deleteOnExit();
+        try (BinaryRecording.Writer out = new BinaryRecording.Writer(ordered)) {
+            for (int i = 0; i < fromText.size(); i++) {
+                out.write(fromText.note(i), fromText.start(i), fromText.end(i), fromText.timbre(i));
+            }
+        }
+        long orderedNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            fromBinary = RecordingReader.read(ordered);
+            orderedNanos = Math.min(orderedNanos, System.nanoTime() - t0);
+        }
+        same &= sameScore(fromText, fromBinary);
+        System.out.printf("  in start order: %d bytes %.1f bytes/row, loads in %.1f ms (%.1fx faster than split)%n",
+            ordered.length(), ordered.length() / (double) notes, orderedNanos / 1e6, splitNanos / (double) orderedNanos);
+
+        // flip a byte in the middle of the file, inside some block's payload
+        byte[] bytes = Files.readAllBytes(binary.toPath());
+        File damaged = File.createTempFile("binary-check", BinaryRecording.EXTENSION);
+        damaged.deleteOnExit();
+        bytes[bytes.length / 2] ^= 0x55;
+        Files.write(damaged.toPath(), bytes);
+        boolean caught;
+        try {
+            RecordingReader.read(damaged);
+            caught = false;
+        } catch (RecordingFormatException e) {
+            caught = true;
+            System.out.println("  damaged block: " + e.getMessage());
+        }
+        int kept = RecordingReader.read(damaged, true).size();
+        System.out.printf("  lenient read kept %d of %d rows%n", kept, notes);
+        boolean lostOneBlock = kept >= notes - 4096 && kept < notes;
+
+        // a file cut off mid-write keeps every whole block before the cut
+        bytes[bytes.length / 2] ^= 0x55;
+        Files.write(damaged.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        int truncated = RecordingReader.read(damaged, true).size();
+        System.out.printf("  truncated to half: lenient read kept %d rows%n", truncated);
+        boolean keptHead = truncated >= notes / 2 - 4096 && truncated <= notes / 2;
+
+        // a block whose checksum is fine but whose rows decode out of range:
+        // a length that overflows the end time and a negative key
+        ByteArrayOutputStream crafted = new ByteArrayOutputStream();
+        BinaryRecording.Writer header = new BinaryRecording.Writer(crafted);
+        header.write(0, 0, 100, 0);
+        header.flush();
+        byte[] rows = {
+            0x02, -1, -1, -1, -1, -1, -1, -1, -1, 0x7F, 0x00,
+            0x00, 0x01, -1, -1, -1, -1, -1, -1, -1, -1, -1, 0x01};
+        CRC32 crc = new CRC32();
+        crc.update(rows);
+        long sum = crc.getValue();
+        crafted.write(2);
+        crafted.write(rows.length);
+        crafted.write(rows);
+        crafted.write(new byte[] {(byte) (sum >>> 24), (byte) (sum >>> 16), (byte) (sum >>> 8), (byte) sum});
+        crafted.write(0);
+        Files.write(damaged.toPath(), crafted.toByteArray());
+        boolean rejected;
+        try {
+            RecordingReader.read(damaged);
+            rejected = false;
+        } catch (RecordingFormatException e) {
+            rejected = true;
+            System.out.println("  rows out of range: " + e.getMessage());
+        }
+        int inRange = RecordingReader.read(damaged, true).size();
+        System.out.printf("  rows out of range: lenient read kept %d of 3 rows%n", inRange);
+        boolean skippedRows = rejected && inRange == 1;
+
+        if (!same) System.out.println("  FAILED: binary load differs from text");
+        if (!caught || !lostOneBlock || !keptHead || !skippedRows) System.out.println("  FAILED: damage not handled");
+        return lossless && same && caught && lostOneBlock && keptHead && skippedRows;
+    }
+
+    // Exports a recording-like score to MIDI and imports it back, checking it is
+    // unchanged and that javax.sound.midi reads the export. Then builds a
+    // 16-track type 1 file with tempo changes and a drum track, and times
+    // MidiFile's merged import against loading it with javax.sound.midi and
+    // sorting every event by tick. Last, files with a status byte where a
+    // data byte belongs must be rejected as malformed.
+    static boolean midiCheck(int notes) throws Exception {
+        File exported = File.createTempFile("midi-check", ".mid");
+        File orchestral = File.createTempFile("midi-check", ".mid");
+        exported.deleteOnExit();
+        orchestral.deleteOnExit();
+
+        // a key can't overlap itself in a recording
+        Random random = new Random(13);
+        int n = Math.min(notes, 100_000);
+        int[] ns = new int[n], ts = new int[n];
+        long[] ss = new long[n], es = new long[n];
+        long[] freeAt = new long[37 * 5];
+        int size = 0;
+        long t = 0;
+        while (size < n) {
+            t += random.nextInt(8);
+            int note = random.nextInt(37), timbre = random.nextInt(5);
+            if (freeAt[note * 5 + timbre] > t) continue;
+            long end = t + random.nextInt(600);
+            freeAt[note * 5 + timbre] = end + 1;
+            ns[size] = note;
+            ts[size] = timbre;
+            ss[size] = t;
+            es[size] = end;
+            size++;
+        }
+        Score recording = Score.sorted(ns, ts, ss, es, size);
+        MidiFile.write(recording, exported);
+        boolean roundTrip = sameScore(recording, MidiFile.read(exported));
+        Sequence check = MidiSystem.getSequence(exported);
+        int onsSeen = 0;
+        for (Track track : check.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiMessage m = track.get(i).getMessage();
+                if (m instanceof ShortMessage && ((ShortMessage) m).getCommand() == 0x90
+                        && ((ShortMessage) m).getData2() > 0) {
+                    onsSeen++;
+                }
+            }
+        }
+        System.out.printf("midi: %d-note recording, %d bytes as MIDI, import %s, javax.sound.midi sees %d notes%n",
+            size, exported.length(), roundTrip ? "identical" : "DIFFERS", onsSeen);
+
+        writeOrchestral(orchestral, notes);
+        Score merged = null, sorted = null;
+        long mergedNanos = Long.MAX_VALUE, sortedNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            merged = MidiFile.read(orchestral);
+            long t1 = System.nanoTime();
+            sorted = loadAndSortMidi(orchestral);
+            long t2 = System.nanoTime();
+            mergedNanos = Math.min(mergedNanos, t1 - t0);
+            sortedNanos = Math.min(sortedNanos, t2 - t1);
+        }
+        boolean same = sameScore(merged, sorted);
+        System.out.printf("  16-track file: %d notes, %.1f MB, best of 5%n", merged.size(), orchestral.length() / 1e6);
+        System.out.printf("  javax.sound.midi + sort %7.1f ms%n", sortedNanos / 1e6);
+        System.out.printf("  MidiFile merged         %7.1f ms, %.1fx faster%n", mergedNanos / 1e6,
+            sortedNanos / (double) mergedNanos);
+        if (!same) System.out.println("  FAILED: imports disagree");
+
+        // note-on with a key, then a velocity, of 0xC8
+        boolean rejected = true;
+        for (byte[] event : new byte[][] {{(byte) 0x9F, (byte) 0xC8, 0x40}, {(byte) 0x90, 0x3C, (byte) 0xC8}}) {
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            file.write(new byte[] {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 0x60,
+                'M', 'T', 'r', 'k', 0, 0, 0, 4, 0});
+            file.write(event);
+            File bad = File.createTempFile("midi-check", ".mid");
+            bad.deleteOnExit();
+            Files.write(bad.toPath(), file.toByteArray());
+            try {
+                MidiFile.read(bad);
+                rejected = false;
+                System.out.println("  FAILED: malformed event accepted");
+            } catch (RecordingFormatException e) {
+                System.out.println("  malformed event: " + e.getMessage());
+            }
+        }
+        return roundTrip && onsSeen == size && same && rejected;
+    }
+
+    // Tempo map on track 0, fifteen instrument tracks and a drum track, with
+    // keys well outside C4..C7.
+    private static void writeOrchestral(File file, int notes) throws Exception {
+        Sequence seq = new Sequence(Sequence.PPQ, 480);
+        Random random = new Random(17);
+        Track tempo = seq.createTrack();
+        long length = notes / 16L * 120;
+        for (long tick = 0; tick < length; tick += 480 * 16) {
+            int micros = 300_000 + random.nextInt(500_000);
+            byte[] data = {(byte) (micros >> 16), (byte) (micros >> 8), (byte) micros};
+            tempo.add(new MidiEvent(new MetaMessage(0x51, data, 3), tick));
+        }
+        for (int ch = 0; ch < 16; ch++) {
+            Track track = seq.createTrack();
+            track.add(new MidiEvent(
+                new ShortMessage(ShortMessage.PROGRAM_CHANGE, ch, ch * 8, 0), 0));
+            long tick = random.nextInt(240);
+            for (int i = 0; i < notes / 16; i++) {
+                int key = 36 + random.nextInt(60);
+                long duration = 30 + random.nextInt(400);
+                track.add(new MidiEvent(
+                    new ShortMessage(ShortMessage.NOTE_ON, ch, key, 90), tick));
+                track.add(new MidiEvent(
+                    new ShortMessage(ShortMessage.NOTE_OFF, ch, key, 0), tick + duration));
+                tick += 20 + random.nextInt(200);
+            }
+        }
+        MidiSystem.write(seq, 1, file);
+    }
+
+    // The straightforward import: every event of every track in one list,
+    // sorted by tick, then paired into notes the same way MidiFile does.
+    private static Score loadAndSortMidi(File file) throws Exception {
+        Sequence seq = MidiSystem.getSequence(file);
+        List<MidiEvent> events = new ArrayList<>();
+        for (Track track : seq.getTracks()) {
+            for (int i = 0; i < track.size(); i++) events.add(track.get(i));
+        }
+        events.sort(Comparator.comparingLong(MidiEvent::getTick));
+
+        List<String[]> rows = new ArrayList<>();
+        Map<Integer, String[]> open = new HashMap<>();
+        int[] program = new int[16];
+        long tempo = 500_000, tempoTick = 0, tempoMicros = 0;
+        int division = seq.getResolution();
+        for (MidiEvent event : events) {
+            long micros = tempoMicros + (event.getTick() - tempoTick) * tempo / division;
+            String ms = Long.toString(micros / 1000);
+            MidiMessage m = event.getMessage();
+            if (m instanceof MetaMessage && ((MetaMessage) m).getType() == 0x51) {
+                byte[] d = ((MetaMessage) m).getData();
+                tempoMicros = micros;
+                tempoTick = event.getTick();
+                tempo = ((d[0] & 0xFF) << 16) | ((d[1] & 0xFF) << 8) | (d[2] & 0xFF);
+            } else if (m instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage) m;
+                int ch = sm.getChannel(), key = sm.getData1(), cmd = sm.getCommand();
+                if (cmd == 0xC0) program[ch] = key;
+                if (ch == 9 || (cmd != 0x80 && cmd != 0x90)) continue;
+                String[] row = open.remove(ch * 128 + key);
+                if (row != null) row[2] = ms;
+                if (cmd == 0x90 && sm.getData2() > 0) {
+                    int note = key - 60;
+                    while (note < 0) note += 12;
+                    while (note >= 37) note -= 12;
+                    row = new String[]{ToneGenerator.NOTES[note], ms, ms, ToneGenerator.TIMBRES[MidiFile.timbreFor(program[ch])]};
+                    rows.add(row);
+                    open.put(ch * 128 + key, row);
+                }
+            }
+        }
+        return Score.compile(rows);
+    }
+
+    // Four threads each play notesPerThread notes on keys of their own, into
+    // a Recorder and into the old synchronized list of String[] events, which
+    // is paired into rows when recording stops. Checks every note comes out
+    // paired, and measures the stop and the bytes allocated per note.
+    static boolean recorderCheck(int notesPerThread) throws Exception {
+        int threads = 4;
+        List<String[]> rawEvents = new ArrayList<>();
+        Recorder recorder = null;
+        long recorderNanos = Long.MAX_VALUE, listNanos = Long.MAX_VALUE;
+        long stopNanos = Long.MAX_VALUE, pairNanos = Long.MAX_VALUE;
+        Score score = null;
+        int rows = 0;
+        for (int round = 0; round < 3; round++) {
+            Recorder r = new Recorder(false);
+            long t0 = System.nanoTime();
+            runProducers(threads, notesPerThread, (note, on) -> {
+                if (on) r.noteOn(Recorder.LOCAL, note, ToneGenerator.PIANO);
+                else r.noteOff(Recorder.LOCAL, note);
+            });
+            long t1 = System.nanoTime();
+            r.stop();
+            long t2 = System.nanoTime();
+            score = r.toScore();
+            recorderNanos = Math.min(recorderNanos, t1 - t0);
+            stopNanos = Math.min(stopNanos, t2 - t1);
+            recorder = r;
+
+            rawEvents.clear();
+            long start = System.currentTimeMillis();
+            long t3 = System.nanoTime();
+            runProducers(threads, notesPerThread, (note, on) -> {
+                String offset = String.valueOf(System.currentTimeMillis() - start);
+                String[] event = on
+                    ? new String[]{"NOTE_ON", ToneGenerator.NOTES[note], offset, "piano"}
+                    : new String[]{"NOTE_OFF", ToneGenerator.NOTES[note], offset, "piano"};
+                synchronized (rawEvents) {
+                    rawEvents.add(event);
+                }
+            });
+            long t4 = System.nanoTime();
+            rows = pairRawEvents(rawEvents).size();
+            long t5 = System.nanoTime();
+            listNanos = Math.min(listNanos, t4 - t3);
+            pairNanos = Math.min(pairNanos, t5 - t4);
+        }
+        int total = threads * notesPerThread;
+        boolean allPaired = score.size() == total && rows == total;
+        for (int i = 0; i < score.size() && allPaired; i++) {
+            allPaired = score.end(i) >= score.start(i);
+        }
+
+        ThreadMXBean mx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        Recorder single = new Recorder(false);
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < 100_000; i++) {
+            single.noteOn(Recorder.LOCAL, i % 37, ToneGenerator.SINE);
+            single.noteOff(Recorder.LOCAL, i % 37);
+        }
+        long perNote = (mx.getThreadAllocatedBytes(tid) - before) / 100_000;
+
+        System.out.printf("recorder: %d threads x %d notes, best of 3 (%d cpus)%n", threads, notesPerThread,
+            Runtime.getRuntime().availableProcessors());
+        System.out.printf("  String[] list   %7.1f ms recording, %7.2f ms pairing at stop%n",
+            listNanos / 1e6, pairNanos / 1e6);
+        System.out.printf("  Recorder        %7.1f ms recording, %7.4f ms to stop, %d bytes/note%n",
+            recorderNanos / 1e6, stopNanos / 1e6, perNote);
+        System.out.printf("  %d of %d notes paired%n", score.size(), total);
+        if (!allPaired) System.out.println("  FAILED: notes lost or unpaired");
+        return allPaired && recorder.size() == total && perNote <= 32;
+    }
+
+    private interface NoteSink {
+        void note(int note, boolean on);
+    }
+
+    // each thread plays on and off pairs on its own nine keys
+    private static void runProducers(int threads, int notesPerThread, NoteSink sink) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int base = t * 9;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < notesPerThread; i++) {
+                    int note = base + i % 9;
+                    sink.note(note, true);
+                    sink.note(note, false);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+    }
+
+    // the pairing PianoApp ran over its event list when recording stopped
+    private static List<String[]> pairRawEvents(List<String[]> rawEvents) {
+        List<String[]> result = new ArrayList<>();
+        Map<String, String[]> activeMap = new HashMap<>();
+        for (String[] evt : rawEvents) {
+            if (evt[0].equals("NOTE_ON")) {
+                activeMap.put(evt[1], evt);
+            } else if (evt[0].equals("NOTE_OFF") && activeMap.containsKey(evt[1])) {
+                String[] start = activeMap.remove(evt[1]);
+                result.add(new String[]{evt[1], start[2], evt[2], evt[3]});
+            }
+        }
+        return result;
+    }
+
+    // Plays the same paced take (a note every 50 µs) into a bare Recorder and
+    // into one being journaled, comparing the per-event cost on the input
+    // thread. Then a child JVM journals a take and halts without closing
+    // anything: recoverAll must recover every committed note from its journal
+    // and leave the takes above, still locked by this JVM, alone.
+    static boolean journalCheck(int notes) throws Exception {
+        File dir = Files.createTempDirectory("journal-check").toFile();
+        long bare = Long.MAX_VALUE, journaled = Long.MAX_VALUE;
+        RecordingJournal journal = null;
+        for (int round = 0; round < 3; round++) {
+            bare = Math.min(bare, pacedTake(new Recorder(false), notes));
+            Recorder recorder = new Recorder(false);
+            File file = new File(dir, "take-" + round + BinaryRecording.EXTENSION);
+            journal = RecordingJournal.start(recorder, file);
+            journaled = Math.min(journaled, pacedTake(recorder, notes));
+            recorder.stop();
+            journal.finish();
+            if (RecordingReader.read(file).size() != notes) {
+                System.out.println("  FAILED: journal lost notes");
+                return false;
+            }
+        }
+        File file = journal.file();
+        System.out.printf("journal: %d-note take, a note every 50 us, best of 3%n", notes);
+        System.out.printf("  input thread: %.0f ns/event bare, %.0f ns/event journaled (%+.0f ns)%n",
+            bare / (2.0 * notes), journaled / (2.0 * notes), (journaled - bare) / (2.0 * notes));
+        System.out.printf("  %d commits, %.2f ms fsync each on the journal thread, %.1f bytes/note on disk%n",
+            journal.commits(), journal.syncNanos() / 1e6 / Math.max(1, journal.commits()),
+            file.length() / (double) notes);
+
+        File crashed = new File(dir, "take-crashed" + BinaryRecording.EXTENSION);
+        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+            "RecordingBenchmark", "journal-crash", crashed.getPath(), Integer.toString(notes))
+            .inheritIO().start();
+        int status = child.waitFor();
+        List<File> recovered = RecordingJournal.recoverAll(dir, dir);
+        int got = recovered.size() == 1 ? RecordingReader.read(recovered.get(0)).size() : 0;
+        boolean leftLive = file.exists() && !crashed.exists();
+        System.out.printf("  child halted with status %d mid-take; recovered %d of %d committed notes%n",
+            status, got, notes);
+        System.out.printf("  recoverAll took %d journal(s) and %s the locked ones%n",
+            recovered.size(), leftLive ? "skipped" : "DID NOT SKIP");
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+        return status == 3 && got == notes && leftLive && journaled < bare * 2;
+    }
+
+    // nanoseconds spent in noteOn/noteOff for a take with a note every 50 µs
+    private static long pacedTake(Recorder recorder, int notes) {
+        long spent = 0;
+        long next = System.nanoTime();
+        for (int i = 0; i < notes; i++) {
+            next += 50_000;
+            while (System.nanoTime() < next) Thread.onSpinWait();
+            long t0 = System.nanoTime();
+            recorder.noteOn(Recorder.LOCAL, i % 37, ToneGenerator.PIANO);
+            recorder.noteOff(Recorder.LOCAL, i % 37);
+            spent += System.nanoTime() - t0;
+        }
+        return spent;
+    }
+
+    // Journals a take, waits for it to be committed and kills the JVM with the
+    // journal still open and no end marker written.
+    private static void journalCrashChild(File file, int notes) throws Exception {
+        Recorder recorder = new Recorder(false);
+        RecordingJournal journal = RecordingJournal.start(recorder, file);
+        for (int i = 0; i < notes; i++) {
+            recorder.noteOn(Recorder.LOCAL, i % 37, ToneGenerator.SINE);
+            recorder.noteOff(Recorder.LOCAL, i % 37);
+        }
+        recorder.noteOn(Recorder.LOCAL, 5, ToneGenerator.SINE); // held when the JVM dies
+        while (journal.committedNotes() < notes) Thread.sleep(5);
+        Runtime.getRuntime().halt(3);
+    }
+
+    private interface ScoreRead {
+        Score read() throws IOException;
+    }
+
+    private static long errorLine(ScoreRead read) throws IOException {
+        try {
+            read.read();
+            return -1;
+        } catch (RecordingFormatException e) {
+            return e.line();
+        }
+    }
+
+    // A synthetic session of the given length in note-off order, the order
+    // recordings used to be saved in. Returns the audio length in ms.
+    static long writeSession(File file, int notes, long seed) throws IOException {
+        Random random = new Random(seed);
+        long[][] rows = new long[notes][];
+        long t = 0;
+        for (int i = 0; i < notes; i++) {
+            t += random.nextInt(6);
+            rows[i] = new long[]{random.nextInt(37), t, t + 20 + random.nextInt(400), random.nextInt(5)};
+        }
+        Arrays.sort(rows, Comparator.comparingLong(r -> r[2]));
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println("note,startTime,endTime,timbre");
+            for (long[] r : rows) {
+                out.println(ToneGenerator.NOTES[(int) r[0]] + "," + r[1] + "," + r[2] + "," + ToneGenerator.TIMBRES[(int) r[3]]);
+            }
+        }
+        return t + 420;
+    }
+
+    // How recordings were read before RecordingReader: split each line on
+    // commas and keep rows with four fields; Score.compile parses the rest.
+    static List<String[]> splitRead(File file) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String header = reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length == 4) rows.add(parts);
+            }
+        }
+        return rows;
+    }
+
+    private static boolean sameScore(Score a, Score b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.note(i) != b.note(i) || a.timbre(i) != b.timbre(i)
+                    || a.start(i) != b.start(i) || a.end(i) != b.end(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
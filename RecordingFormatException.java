@@ -0,0 +1,31 @@
+import java.io.IOException;
+
+// A recording row that can't be played, with the 1-based line it is on, or
+// -1 for formats without lines.
+public class RecordingFormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long line;
+    private final String detail;
+
+    public RecordingFormatException(long line, String detail) {
+        super("line " + line + ": " + detail);
+        this.line = line;
+        this.detail = detail;
+    }
+
+    public RecordingFormatException(String detail) {
+        super(detail);
+        this.line = -1;
+        this.detail = detail;
+    }
+
+    public long line() {
+        return line;
+    }
+
+    // the message without the line number
+    public String detail() {
+        return detail;
+    }
+}
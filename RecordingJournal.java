@@ -0,0 +1,229 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Keeps the take being recorded safe on disk until it is saved. A background
+// thread follows the Recorder's log and, every -Dpiano.journalCommitMs
+// (default 100), appends the notes finished since the last commit to a
+// journal file and fsyncs once for the whole batch. The keys and the network
+// thread never wait on the file.
+//
+// The journal is a binary recording (BinaryRecording) written one block per
+// commit. Blocks carry checksums, so after a crash a torn last block is
+// dropped and everything before it is read; the crash loses at most one
+// commit interval and the notes still held. recoverAll, run at startup,
+// turns journals left behind into normal recordings.
+//
+// A journal is locked from start() until discard(), so another instance
+// sharing the directory leaves it alone while its take is still live.
+//
+// -Dpiano.journal=false turns journaling off.
+public class RecordingJournal {
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("piano.journal"));
+    static final File DIR = new File(System.getProperty("piano.journalDir",
+        System.getProperty("user.home") + File.separator + ".piano-journal"));
+    private static final long COMMIT_NANOS = Long.getLong("piano.journalCommitMs", 100) * 1_000_000;
+    private static final String PREFIX = "take-";
+    private static final AtomicLong NEXT = new AtomicLong();
+
+    private final Recorder recorder;
+    private final File file;
+    private final FileOutputStream fileOut;
+    private final FileLock lock;
+    private final BinaryRecording.Writer writer;
+    private final Thread thread;
+    private volatile boolean finishing = false;
+
+    // journal thread only: rows still sounding at the last commit, and how
+    // far the log has been scanned
+    private int[] pending = new int[64];
+    private int pendingCount = 0;
+    private int scanned = 0;
+
+    private volatile long committedNotes = 0;
+    private volatile long commits = 0;
+    private volatile long syncNanos = 0;
+
+    private RecordingJournal(Recorder recorder, File file) throws IOException {
+        this.recorder = recorder;
+        this.file = file;
+        this.fileOut = new FileOutputStream(file);
+        this.lock = tryLock(fileOut.getChannel(), false);
+        if (lock == null) {
+            fileOut.close();
+            throw new IOException("Journal " + file + " is in use");
+        }
+        this.writer = new BinaryRecording.Writer(fileOut);
+        writer.flush();
+        thread = new Thread(this::run, "recording-journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static RecordingJournal start(Recorder recorder) throws IOException {
+        if (!DIR.isDirectory() && !DIR.mkdirs()) throw new IOException("Can't create " + DIR);
+        // pid and count keep takes started in the same ms from sharing a file
+        String name = PREFIX + System.currentTimeMillis() + "-" + ProcessHandle.current().pid()
+            + "-" + NEXT.getAndIncrement() + BinaryRecording.EXTENSION;
+        return start(recorder, new File(DIR, name));
+    }
+
+    static RecordingJournal start(Recorder recorder, File file) throws IOException {
+        return new RecordingJournal(recorder, file);
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public long committedNotes() {
+        return committedNotes;
+    }
+
+    public long commits() {
+        return commits;
+    }
+
+    // total time spent in fsync
+    public long syncNanos() {
+        return syncNanos;
+    }
+
+    // Call after Recorder.stop(): commits the rest of the take, held notes
+    // ending at the stop, and ends the journal. It stays on disk, and
+    // locked, until discard(), so an unsaved take still survives a crash.
+    public void finish() {
+        finishing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The take was saved or replaced; the journal is no longer needed.
+    public void discard() {
+        finish();
+        try {
+            fileOut.close(); // releases the lock
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (file.exists() && !file.delete()) {
+            System.err.println("Could not delete journal " + file);
+        }
+    }
+
+    private void run() {
+        try {
+            while (!finishing) {
+                LockSupport.parkNanos(this, COMMIT_NANOS);
+                commit();
+            }
+            commit();
+            writer.end();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Appends every note finished since the last commit as one block.
+    private void commit() throws IOException {
+        long written = 0;
+        int kept = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            int row = pending[i];
+            if (tryWrite(row)) {
+                written++;
+            } else {
+                pending[kept++] = row;
+            }
+        }
+        pendingCount = kept;
+        int claimed = recorder.size();
+        for (; scanned < claimed; scanned++) {
+            if (tryWrite(scanned)) {
+                written++;
+            } else {
+                if (pendingCount == pending.length) pending = java.util.Arrays.copyOf(pending, pendingCount * 2);
+                pending[pendingCount++] = scanned;
+            }
+        }
+        if (written == 0) return;
+
+        writer.flush();
+        long t0 = System.nanoTime();
+        fileOut.getChannel().force(false);
+        syncNanos += System.nanoTime() - t0;
+        commits++;
+        committedNotes += written;
+    }
+
+    private boolean tryWrite(int row) throws IOException {
+        if (!recorder.isWritten(row)) return false;
+        long end = recorder.endMillis(row);
+        if (end < 0) return false;
+        writer.write(recorder.note(row), recorder.startMillis(row), end, recorder.timbre(row));
+        return true;
+    }
+
+    // Reads a journal, torn tail and all, and writes it out as a normal
+    // recording in start order in dir. Returns the new file, or null if the
+    // journal held no notes.
+    static File recover(File journal, File dir) throws IOException {
+        Score score = RecordingReader.read(journal, true);
+        if (score.isEmpty()) return null;
+        String name = journal.getName();
+        File recovered = new File(dir, "recovered-" + name.substring(0, name.length() - BinaryRecording.EXTENSION.length())
+            + BinaryRecording.EXTENSION);
+        BinaryRecording.write(score, recovered);
+        return recovered;
+    }
+
+    // Turns every journal left by an earlier run into a recording in the
+    // user's home directory and deletes it. Journals another instance still
+    // has locked are skipped. Returns the recordings made, oldest first.
+    public static List<File> recoverAll() {
+        return recoverAll(DIR, new File(System.getProperty("user.home")));
+    }
+
+    static List<File> recoverAll(File journalDir, File dir) {
+        List<File> recovered = new ArrayList<>();
+        File[] journals = journalDir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(BinaryRecording.EXTENSION));
+        if (journals == null) return recovered;
+        java.util.Arrays.sort(journals);
+        for (File journal : journals) {
+            // shared, so it can be read through another stream while held
+            try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.READ)) {
+                if (tryLock(channel, true) == null) continue; // still being recorded
+                File file = recover(journal, dir);
+                if (file != null) recovered.add(file);
+            } catch (NoSuchFileException e) {
+                continue; // another instance recovered it first
+            } catch (IOException | RuntimeException e) {
+                // left in place for another try
+                e.printStackTrace();
+                continue;
+            }
+            if (!journal.delete()) System.err.println("Could not delete journal " + journal);
+        }
+        return recovered;
+    }
+
+    // null if another process, or this one, holds a lock on the file
+    private static FileLock tryLock(FileChannel channel, boolean shared) throws IOException {
+        try {
+            return channel.tryLock(0, Long.MAX_VALUE, shared);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Reader for the recording text format: a "note,startTime,endTime,timbre"
+// header, then one row per note, e.g. "C#5,1750,2000,piano".
+//
+// Rows are parsed straight from the bytes in a single pass: note names and
+// timbres are matched to their ToneGenerator ids without building strings,
+// and times are read digit by digit. A row that doesn't fit the format fails
+// with a RecordingFormatException naming its line, instead of being skipped
+// without a word; blank lines are allowed. In lenient mode bad rows are
+// counted and skipped.
+//
+// read(file) parses sequentially, handing binary recordings (BinaryRecording)
+// to their own reader. readParallel splits a big text file into slices
+// at line boundaries and parses them on several threads; line numbers are
+// fixed up afterwards from each slice's line count.
+public class RecordingReader implements RecordingRows {
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // semitone above C for A..G
+    private static final int[] SEMITONE = {9, 11, 0, 2, 4, 5, 7};
+
+    // the row parsed by the last successful next()
+    int note;
+    int timbre;
+    long start;
+    long end;
+    long line;
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private long shifted = 0; // bytes dropped from the front of buf by fill()
+    private final boolean lenient;
+    private final boolean mayHaveHeader;
+    private long skipped = 0;
+    private RecordingFormatException firstError;
+
+    // Streams rows from in, reading it a buffer at a time.
+    public RecordingReader(InputStream in, boolean lenient) {
+        this.in = in;
+        this.buf = new byte[BUFFER_BYTES];
+        this.lenient = lenient;
+        this.mayHaveHeader = true;
+    }
+
+    // Parses data[from, to), which must start at a line start. Line numbers
+    // count from 1 at from; only the start of a file may have the header.
+    RecordingReader(byte[] data, int from, int to, boolean fileStart, boolean lenient) {
+        this.in = null;
+        this.buf = data;
+        this.pos = from;
+        this.limit = to;
+        this.eof = true;
+        this.lenient = lenient;
+        this.mayHaveHeader = fileStart;
+    }
+
+    public static Score read(File file) throws IOException {
+        return read(file, false);
+    }
+
+    // Reads either format, or a Standard MIDI File; binary recordings and MIDI
+    // files are told apart by their magic.
+    public static Score read(File file, boolean lenient) throws IOException {
+        if (MidiFile.isMidi(file)) return MidiFile.read(file);
+        try (InputStream in = new FileInputStream(file)) {
+            RecordingRows rows = open(in, lenient);
+            Score score = readAll(rows);
+            rows.reportSkipped(file);
+            return score;
+        }
+    }
+
+    // Rows of a text or binary recording, whichever in holds.
+    static RecordingRows open(InputStream in, boolean lenient) throws IOException {
+        PushbackInputStream head = new PushbackInputStream(in, BinaryRecording.MAGIC.length);
+        byte[] magic = new byte[BinaryRecording.MAGIC.length];
+        int n = head.readNBytes(magic, 0, magic.length);
+        head.unread(magic, 0, n);
+        if (java.util.Arrays.equals(magic, BinaryRecording.MAGIC)) {
+            return new BinaryRecording.Reader(head, lenient);
+        }
+        return new RecordingReader(head, lenient);
+    }
+
+    // Parses on up to threads threads. Files under a megabyte per thread
+    // aren't worth splitting and are read sequentially.
+    public static Score readParallel(File file, int threads) throws IOException {
+        long length = file.length();
+        if (threads <= 1 || length < (1L << 20) * threads || length > Integer.MAX_VALUE
+            || BinaryRecording.isBinary(file)) {
+            return read(file);
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        // slice ends are moved forward to the next line break
+        int[] bounds = new int[threads + 1];
+        for (int i = 1; i < threads; i++) {
+            int b = Math.max(bounds[i - 1], (int) ((long) data.length * i / threads));
+            while (b < data.length && data[b - 1] != '\n') b++;
+            bounds[i] = b;
+        }
+        bounds[threads] = data.length;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Slice>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int from = bounds[i];
+                int to = bounds[i + 1];
+                boolean first = i == 0;
+                futures.add(pool.submit(() -> Slice.parse(data, from, to, first)));
+            }
+            List<Slice> slices = new ArrayList<>();
+            for (Future<Slice> f : futures) {
+                slices.add(f.get());
+            }
+
+            long linesBefore = 0;
+            int total = 0;
+            for (Slice slice : slices) {
+                if (slice.error != null) {
+                    throw new RecordingFormatException(linesBefore + slice.error.line(), slice.error.detail());
+                }
+                linesBefore += slice.lines;
+                total += slice.size;
+            }
+
+            int[] notes = new int[total];
+            int[] timbres = new int[total];
+            long[] starts = new long[total];
+            long[] ends = new long[total];
+            int at = 0;
+            for (Slice slice : slices) {
+                System.arraycopy(slice.notes, 0, notes, at, slice.size);
+                System.arraycopy(slice.timbres, 0, timbres, at, slice.size);
+                System.arraycopy(slice.starts, 0, starts, at, slice.size);
+                System.arraycopy(slice.ends, 0, ends, at, slice.size);
+                at += slice.size;
+            }
+            return Score.sorted(notes, timbres, starts, ends, total);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + file);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read " + file, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // One slice of a parallel read; lines and the error's line number count
+    // from the slice's start.
+    private static final class Slice {
+        int[] notes = new int[1024];
+        int[] timbres = new int[1024];
+        long[] starts = new long[1024];
+        long[] ends = new long[1024];
+        int size;
+        long lines;
+        RecordingFormatException error;
+
+        static Slice parse(byte[] data, int from, int to, boolean first) {
+            Slice slice = new Slice();
+            RecordingReader reader = new RecordingReader(data, from, to, first, false);
+            try {
+                while (reader.next()) {
+                    slice.add(reader);
+                }
+            } catch (RecordingFormatException e) {
+                slice.error = e;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            slice.lines = reader.line;
+            return slice;
+        }
+
+        void add(RecordingRows r) {
+            if (size == notes.length) {
+                int n = size * 2;
+                notes = java.util.Arrays.copyOf(notes, n);
+                timbres = java.util.Arrays.copyOf(timbres, n);
+                starts = java.util.Arrays.copyOf(starts, n);
+                ends = java.util.Arrays.copyOf(ends, n);
+            }
+            notes[size] = r.note();
+            timbres[size] = r.timbre();
+            starts[size] = r.start();
+            ends[size] = r.end();
+            size++;
+        }
+    }
+
+    static Score readAll(RecordingRows rows) throws IOException {
+        Slice all = new Slice();
+        while (rows.next()) {
+            all.add(rows);
+        }
+        return Score.sorted(all.notes, all.timbres, all.starts, all.ends, all.size);
+    }
+
+    @Override
+    public int note() {
+        return note;
+    }
+
+    @Override
+    public int timbre() {
+        return timbre;
+    }
+
+    @Override
+    public long start() {
+        return start;
+    }
+
+    @Override
+    public long end() {
+        return end;
+    }
+
+    // bytes of input consumed up to the end of the last row read
+    @Override
+    public long bytesRead() {
+        return shifted + pos;
+    }
+
+    // rows skipped in lenient mode, and the first reason
+    public long skipped() {
+        return skipped;
+    }
+
+    public RecordingFormatException firstError() {
+        return firstError;
+    }
+
+    @Override
+    public void reportSkipped(File file) {
+        if (skipped > 0) {
+            System.err.println("Skipped " + skipped + " bad rows in " + file.getName()
+                + ", first at " + firstError.getMessage());
+        }
+    }
+
+    // Parses the next row into note, timbre, start, end and line. Returns
+    // false at the end of the input.
+    @Override
+    public boolean next() throws IOException {
+        while (true) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) return false;
+            int from = pos;
+            int to = lineEnd;
+            pos = Math.min(limit, lineEnd + 1);
+            line++;
+            if (to > from && buf[to - 1] == '\r') to--;
+            if (isBlank(from, to)) continue;
+            if (line == 1 && mayHaveHeader && startsWith(from, to, "note")) continue; // header
+
+            try {
+                parseRow(from, to);
+                return true;
+            } catch (RecordingFormatException e) {
+                if (!lenient) throw e;
+                if (firstError == null) firstError = e;
+                skipped++;
+            }
+        }
+    }
+
+    // Index of the next line break (or the end of the last line), refilling
+    // the buffer as needed; -1 when nothing is left.
+    private int findLineEnd() throws IOException {
+        int scanFrom = pos;
+        while (true) {
+            for (int i = scanFrom; i < limit; i++) {
+                if (buf[i] == '\n') return i;
+            }
+            if (eof) return pos < limit ? limit : -1;
+            scanFrom = limit - pos; // what was scanned moves to the buffer start
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        int remaining = limit - pos;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, remaining);
+        } else if (remaining == buf.length) {
+            buf = java.util.Arrays.copyOf(buf, buf.length * 2); // a very long line
+        }
+        shifted += pos;
+        pos = 0;
+        limit = remaining;
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) eof = true;
+        else limit += n;
+    }
+
+    private void parseRow(int from, int to) throws RecordingFormatException {
+        int c1 = indexOf(',', from, to);
+        int c2 = c1 < 0 ? -1 : indexOf(',', c1 + 1, to);
+        int c3 = c2 < 0 ? -1 : indexOf(',', c2 + 1, to);
+        if (c3 < 0 || indexOf(',', c3 + 1, to) >= 0) {
+            throw error("expected 4 fields (note,startTime,endTime,timbre), found " + (countCommas(from, to) + 1));
+        }
+        note = parseNote(from, c1);
+        start = parseTime(c1 + 1, c2, "startTime");
+        end = parseTime(c2 + 1, c3, "endTime");
+        if (end < start) {
+            throw error("endTime " + end + " is before startTime " + start);
+        }
+        timbre = parseTimbre(c3 + 1, to);
+    }
+
+    private int parseNote(int from, int to) throws RecordingFormatException {
+        while (from < to && buf[from] == ' ') from++;
+        while (to > from && buf[to - 1] == ' ') to--;
+        int i = from;
+        int letter = i < to ? buf[i++] - 'A' : -1;
+        boolean sharp = i < to && buf[i] == '#';
+        if (sharp) i++;
+        int octave = i + 1 == to ? buf[i] - '0' : -1;
+        if (letter < 0 || letter > 6 || octave < 0 || octave > 9) {
+            throw error("bad note '" + text(from, to) + "'");
+        }
+        int id = (octave - 4) * 12 + SEMITONE[letter] + (sharp ? 1 : 0);
+        // rules out E#, B#, and anything outside C4..C7
+        if (id < 0 || id >= ToneGenerator.NOTES.length || !matches(from, to, ToneGenerator.NOTES[id])) {
+            throw error("note '" + text(from, to) + "' is not on the keyboard (C4 to C7)");
+        }
+        return id;
+    }
+
+    private long parseTime(int from, int to, String field) throws RecordingFormatException {
+        while (from < to && buf[from] == ' ') from++;
+        while (to > from && buf[to - 1] == ' ') to--;
+        if (from == to || to - from > 18) {
+            throw error("bad " + field + " '" + text(from, to) + "'");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                throw error("bad " + field + " '" + text(from, to) + "'");
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private int parseTimbre(int from, int to) throws RecordingFormatException {
+        while (from < to && buf[from] == ' ') from++;
+        while (to > from && buf[to - 1] == ' ') to--;
+        for (int t = 0; t < ToneGenerator.TIMBRES.length; t++) {
+            if (matches(from, to, ToneGenerator.TIMBRES[t])) return t;
+        }
+        throw error("unknown timbre '" + text(from, to) + "'");
+    }
+
+    private RecordingFormatException error(String message) {
+        return new RecordingFormatException(line, message);
+    }
+
+    private boolean matches(int from, int to, String s) {
+        if (to - from != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[from + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(int from, int to, String s) {
+        return to - from >= s.length() && matches(from, from + s.length(), s);
+    }
+
+    private boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] != ' ' && buf[i] != '\t') return false;
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private int countCommas(int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == ',') n++;
+        }
+        return n;
+    }
+
+    private String text(int from, int to) {
+        return new String(buf, from, to - from, java.nio.charset.StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,23 @@
+import java.io.File;
+import java.io.IOException;
+
+// A recording read one row at a time, whichever file format it is in.
+// Note and timbre are ToneGenerator ids; times are ms from the start.
+interface RecordingRows {
+    // Moves to the next row; false at the end of the recording.
+    boolean next() throws IOException;
+
+    int note();
+
+    int timbre();
+
+    long start();
+
+    long end();
+
+    // bytes of the file consumed so far, for progress
+    long bytesRead();
+
+    // Prints how many rows a lenient read skipped, if any.
+    void reportSkipped(File file);
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Decoded PCM for a whole sample directory in one file, so later starts can
+// map the frames instead of decoding every WAV again.
+//
+// Layout: int headerLength, header, long crc32 of the data, data.
+// The header holds magic, version, sample rate and one entry per note with the
+// source file's length and mtime, so editing a WAV invalidates the cache.
+public class SampleCache {
+    static final String FILE_NAME = ".pcm-cache";
+    private static final int MAGIC = 0x43505043; // "CPPC"
+    private static final int VERSION = 1;
+
+    // Fills the store from the cache file when it's valid, otherwise decodes
+    // every note in parallel and writes a fresh cache. Returns true on a cache hit.
+    static boolean loadInto(SampleStore store, String dir, String[] notes) {
+        File cacheFile = new File(dir, FILE_NAME);
+        try {
+            if (cacheFile.isFile() && mapInto(store, cacheFile, dir, notes)) {
+                for (String note : notes) {
+                    store.get(dir, note);
+                }
+                return true;
+            }
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable sample cache: " + e.getMessage());
+        }
+
+        decodeParallel(store, dir, notes);
+        try {
+            write(store, cacheFile, dir, notes);
+        } catch (IOException e) {
+            System.err.println("Could not write sample cache: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static void decodeParallel(SampleStore store, String dir, String[] notes) {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "sample-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Callable<ShortBuffer>> tasks = new ArrayList<>();
+            for (String note : notes) {
+                tasks.add(() -> store.get(dir, note));
+            }
+            pool.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static boolean mapInto(SampleStore store, File cacheFile, String dir, String[] notes) throws IOException {
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int headerLength = map.getInt(0);
+            if (headerLength <= 0 || headerLength > map.capacity() - 12) return false;
+
+            byte[] header = new byte[headerLength];
+            map.get(4, header);
+            long expectedCrc = map.getLong(4 + headerLength);
+            int dataStart = 4 + headerLength + 8;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+            if (in.readFloat() != AudioEngine.SAMPLE_RATE) return false;
+            int count = in.readInt();
+            if (count != notes.length) return false;
+
+            String[] names = new String[count];
+            long[] offsets = new long[count];
+            int[] frames = new int[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = in.readUTF();
+                long srcLength = in.readLong();
+                long srcModified = in.readLong();
+                offsets[i] = in.readLong();
+                frames[i] = in.readInt();
+                File src = new File(dir, names[i] + ".wav");
+                if (!names[i].equals(notes[i]) || src.length() != srcLength || src.lastModified() != srcModified) {
+                    return false;
+                }
+                if (dataStart + offsets[i] + 2L * frames[i] > map.capacity()) return false;
+            }
+
+            ByteBuffer data = map.duplicate().position(dataStart);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if (crc.getValue() != expectedCrc) return false;
+
+            for (int i = 0; i < count; i++) {
+                int from = (int) (dataStart + offsets[i]);
+                ShortBuffer slice = map.duplicate().position(from).limit(from + 2 * frames[i])
+                    .slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                store.addMapped(dir, names[i], slice);
+            }
+            return true;
+        }
+    }
+
+    private static void write(SampleStore store, File cacheFile, String dir, String[] notes) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeFloat(AudioEngine.SAMPLE_RATE);
+        header.writeInt(notes.length);
+
+        ShortBuffer[] buffers = new ShortBuffer[notes.length];
+        long offset = 0;
+        for (int i = 0; i < notes.length; i++) {
+            buffers[i] = store.get(dir, notes[i]);
+            if (buffers[i] == null) return; // don't cache a partial set
+            File src = new File(dir, notes[i] + ".wav");
+            header.writeUTF(notes[i]);
+            header.writeLong(src.length());
+            header.writeLong(src.lastModified());
+            header.writeLong(offset);
+            header.writeInt(buffers[i].limit());
+            offset += 2L * buffers[i].limit();
+        }
+        header.flush();
+
+        Path target = cacheFile.toPath();
+        Path tmp = target.resolveSibling(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] h = headerBytes.toByteArray();
+            ByteBuffer prefix = ByteBuffer.allocate(4 + h.length + 8);
+            prefix.putInt(h.length).put(h).putLong(0L).flip();
+            channel.write(prefix);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            for (ShortBuffer frames : buffers) {
+                for (int i = 0; i < frames.limit(); i++) {
+                    if (!chunk.hasRemaining()) {
+                        flushChunk(channel, chunk, crc);
+                    }
+                    chunk.putShort(frames.get(i));
+                }
+            }
+            flushChunk(channel, chunk, crc);
+
+            ByteBuffer crcBytes = ByteBuffer.allocate(8).putLong(crc.getValue());
+            crcBytes.flip();
+            channel.write(crcBytes, 4 + h.length);
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void flushChunk(FileChannel channel, ByteBuffer chunk, CRC32 crc) throws IOException {
+        chunk.flip();
+        crc.update(chunk.duplicate());
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        chunk.clear();
+    }
+}
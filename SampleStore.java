@@ -0,0 +1,140 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sound.sampled.*;
+
+// Decoded instrument samples kept off-heap as 16-bit mono frames.
+// A note is decoded the first time it is asked for; once the total passes
+// the memory budget the least recently used notes are dropped and reloaded
+// on demand. Voices that still hold an evicted buffer keep playing it.
+public class SampleStore {
+    private static final AudioFormat PCM_FORMAT =
+        new AudioFormat(AudioEngine.SAMPLE_RATE, 16, 1, true, false);
+
+    private final long budgetBytes;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // frames already decoded into a mapped cache file, used before any WAV decode
+    private final Map<String, ShortBuffer> mapped = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    private static class Entry {
+        final ShortBuffer frames;
+        final long bytes;
+        volatile long lastUsed;
+
+        Entry(ShortBuffer frames, long bytes) {
+            this.frames = frames;
+            this.bytes = bytes;
+        }
+    }
+
+    public SampleStore(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // -Dpiano.sampleBudgetMb, default 64 MB of decoded PCM
+    public static SampleStore withDefaultBudget() {
+        long mb = Long.getLong("piano.sampleBudgetMb", 64);
+        return new SampleStore(mb * 1024 * 1024);
+    }
+
+    // Returns the frames of dir/note.wav, or null when the file can't be decoded.
+    public ShortBuffer get(String dir, String note) {
+        String key = dir + "/" + note;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = entries.computeIfAbsent(key, k -> load(k, new File(dir, note + ".wav")));
+            if (entry == null) {
+                return null;
+            }
+            evictOverBudget(key);
+        }
+        entry.lastUsed = clock.incrementAndGet();
+        return entry.frames;
+    }
+
+    public boolean isLoaded(String dir, String note) {
+        return entries.containsKey(dir + "/" + note);
+    }
+
+    void addMapped(String dir, String note, ShortBuffer frames) {
+        mapped.put(dir + "/" + note, frames);
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    public long budgetBytes() {
+        return budgetBytes;
+    }
+
+    private Entry load(String key, File file) {
+        try {
+            ShortBuffer frames = mapped.get(key);
+            if (frames == null) {
+                frames = decode(file);
+            }
+            long bytes = 2L * frames.capacity();
+            usedBytes.addAndGet(bytes);
+            Entry entry = new Entry(frames, bytes);
+            entry.lastUsed = clock.incrementAndGet();
+            return entry;
+        } catch (Exception e) {
+            System.err.println("Failed to load sample " + file.getPath());
+            return null;
+        }
+    }
+
+    private void evictOverBudget(String keep) {
+        while (usedBytes.get() > budgetBytes) {
+            String oldestKey = null;
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (!e.getKey().equals(keep) && e.getValue().lastUsed < oldest) {
+                    oldest = e.getValue().lastUsed;
+                    oldestKey = e.getKey();
+                }
+            }
+            if (oldestKey == null) return;
+            Entry removed = entries.remove(oldestKey);
+            if (removed != null) {
+                usedBytes.addAndGet(-removed.bytes);
+            }
+        }
+    }
+
+    // Decodes a sample file straight into a direct buffer, converting to
+    // 44.1 kHz 16-bit signed mono if the file is stored differently.
+    static ShortBuffer decode(File file) throws IOException, UnsupportedAudioFileException {
+        try (AudioInputStream source = AudioSystem.getAudioInputStream(file)) {
+            AudioInputStream ais = source.getFormat().matches(PCM_FORMAT)
+                ? source
+                : AudioSystem.getAudioInputStream(PCM_FORMAT, source);
+            long frameLength = ais.getFrameLength();
+            if (frameLength == AudioSystem.NOT_SPECIFIED) {
+                // unknown length, fall back to reading through the heap once
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                ais.transferTo(baos);
+                byte[] bytes = baos.toByteArray();
+                ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length & ~1).order(ByteOrder.LITTLE_ENDIAN);
+                direct.put(bytes, 0, bytes.length & ~1).flip();
+                return direct.asShortBuffer();
+            }
+
+            ByteBuffer direct = ByteBuffer.allocateDirect((int) (frameLength * 2)).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] chunk = new byte[8192];
+            int read;
+            while (direct.hasRemaining() && (read = ais.read(chunk, 0, Math.min(chunk.length, direct.remaining()))) != -1) {
+                direct.put(chunk, 0, read);
+            }
+            direct.flip();
+            return direct.asShortBuffer();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.Arrays;
+import java.util.List;
+
+// A recording compiled once for playback: notes sorted by start time in
+// parallel primitive arrays, with note and timbre names resolved to the
+// ToneGenerator ids. Playback walks it with a cursor instead of reparsing rows.
+//
+// Seeking needs the notes already sounding at a time, not just the next one to
+// start. Notes are sorted by start, so the candidates are a prefix of the
+// arrays; a segment tree of the largest end time over index ranges finds the
+// ones in that prefix still sounding in O(log n) per hit.
+public class Score {
+    private final int[] notes;
+    private final int[] timbres;
+    private final long[] starts;
+    private final long[] ends;
+    private final int size;
+    private final long duration;
+    private final long[] maxEnd; // segment tree, leaves at [leaves, 2 * leaves)
+    private final int leaves;
+
+    Score(int[] notes, int[] timbres, long[] starts, long[] ends, int size) {
+        this.notes = notes;
+        this.timbres = timbres;
+        this.starts = starts;
+        this.ends = ends;
+        this.size = size;
+        long max = 0;
+        for (int i = 0; i < size; i++) {
+            max = Math.max(max, ends[i]);
+        }
+        this.duration = max;
+
+        int l = 1;
+        while (l < size) l <<= 1;
+        leaves = l;
+        maxEnd = new long[2 * l];
+        Arrays.fill(maxEnd, Long.MIN_VALUE);
+        System.arraycopy(ends, 0, maxEnd, l, size);
+        for (int i = l - 1; i > 0; i--) {
+            maxEnd[i] = Math.max(maxEnd[2 * i], maxEnd[2 * i + 1]);
+        }
+    }
+
+    // Rows are note,startTime,endTime,timbre as saved by PianoApp. Unknown notes
+    // and rows with unparsable times are left out.
+    public static Score compile(List<String[]> rows) {
+        int n = rows.size();
+        int[] notes = new int[n];
+        int[] timbres = new int[n];
+        long[] starts = new long[n];
+        long[] ends = new long[n];
+        int size = 0;
+        for (String[] row : rows) {
+            int note = ToneGenerator.noteId(row[0].trim());
+            if (note < 0) continue;
+            try {
+                starts[size] = Long.parseLong(row[1].trim());
+                ends[size] = Long.parseLong(row[2].trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            notes[size] = note;
+            timbres[size] = ToneGenerator.timbreId(row[3].trim());
+            size++;
+        }
+        return sorted(notes, timbres, starts, ends, size);
+    }
+
+    // Sorts the arrays by start time (stable, so equal starts keep file order).
+    static Score sorted(int[] notes, int[] timbres, long[] starts, long[] ends, int size) {
+        boolean inOrder = true;
+        for (int i = 1; i < size && inOrder; i++) {
+            inOrder = starts[i - 1] <= starts[i];
+        }
+        if (inOrder) {
+            return new Score(notes, timbres, starts, ends, size);
+        }
+
+        // sort (start, original index) pairs packed into one long each; the
+        // index in the low bits keeps equal starts in file order
+        long[] order = new long[size];
+        boolean packable = size < (1 << 23);
+        for (int i = 0; i < size && packable; i++) {
+            packable = starts[i] >= 0 && starts[i] < (1L << 40);
+            order[i] = (starts[i] << 23) | i;
+        }
+        if (packable) {
+            Arrays.sort(order);
+        } else {
+            Integer[] boxed = new Integer[size];
+            for (int i = 0; i < size; i++) boxed[i] = i;
+            Arrays.sort(boxed, (a, b) -> Long.compare(starts[a], starts[b]));
+            for (int i = 0; i < size; i++) order[i] = boxed[i];
+        }
+
+        int[] n2 = new int[size];
+        int[] t2 = new int[size];
+        long[] s2 = new long[size];
+        long[] e2 = new long[size];
+        for (int i = 0; i < size; i++) {
+            int j = packable ? (int) (order[i] & ((1 << 23) - 1)) : (int) order[i];
+            n2[i] = notes[j];
+            t2[i] = timbres[j];
+            s2[i] = starts[j];
+            e2[i] = ends[j];
+        }
+        return new Score(n2, t2, s2, e2, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // latest end time, in ms
+    public long duration() {
+        return duration;
+    }
+
+    public int note(int i) {
+        return notes[i];
+    }
+
+    public int timbre(int i) {
+        return timbres[i];
+    }
+
+    public long start(int i) {
+        return starts[i];
+    }
+
+    public long end(int i) {
+        return ends[i];
+    }
+
+    public String noteName(int i) {
+        return ToneGenerator.NOTES[notes[i]];
+    }
+
+    public String timbreName(int i) {
+        return ToneGenerator.TIMBRES[timbres[i]];
+    }
+
+    // index of the first note starting at or after time, size() if none
+    public int firstStartingAtOrAfter(long time) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Fills out with the indices of notes that started before time and are
+    // still sounding at it (start < time < end), in start order, and returns
+    // how many. Notes starting exactly at time are left to the cursor, from
+    // firstStartingAtOrAfter(time). out needs room for size() entries.
+    public int soundingAt(long time, int[] out) {
+        return collect(1, 0, leaves, firstStartingAtOrAfter(time), time, out, 0);
+    }
+
+    private int collect(int node, int lo, int hi, int limit, long time, int[] out, int count) {
+        if (lo >= limit || maxEnd[node] <= time) return count;
+        if (hi - lo == 1) {
+            out[count] = lo;
+            return count + 1;
+        }
+        int mid = (lo + hi) >>> 1;
+        count = collect(2 * node, lo, mid, limit, time, out, count);
+        return collect(2 * node + 1, mid, hi, limit, time, out, count);
+    }
+}
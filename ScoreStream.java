@@ -0,0 +1,245 @@
+import java.io.*;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Reads a recording file on a background thread and hands it to a Sequencer
+// as small sorted Score chunks, so hours-long session logs play with constant
+// memory and start before the file has been read to the end.
+//
+// Rows are expected roughly in start order. A min-heap of the next
+// -Dpiano.streamWindow rows (default 4096) puts them back in order, which
+// covers files written in note-off order as long as no note is held across
+// more rows than that; a row that arrives later still starts with the note
+// emitted just before it and is counted in lateNotes().
+//
+// At most two chunks of -Dpiano.streamChunk notes (default 4096) wait for the
+// sequencer; the reader parks until one is taken.
+public class ScoreStream implements Closeable {
+    private static final int CHUNK_NOTES = Integer.getInteger("piano.streamChunk", 4096);
+    private static final int WINDOW = Integer.getInteger("piano.streamWindow", 4096);
+    private static final int MAX_QUEUED = 2;
+
+    private static final class Chunk {
+        final Score score;
+        final long endOffset;
+
+        Chunk(Score score, long endOffset) {
+            this.score = score;
+            this.endOffset = endOffset;
+        }
+    }
+
+    private final File file;
+    private final long fileBytes;
+    private final ConcurrentLinkedQueue<Chunk> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ShortBuffer[] pianoSamples = new ShortBuffer[ToneGenerator.NOTES.length];
+    private final Thread reader;
+
+    private volatile boolean done = false;
+    private volatile boolean closed = false;
+    private volatile long consumedOffset = 0;
+    private volatile long notesRead = 0;
+    private volatile long lateNotes = 0;
+    private volatile IOException error;
+
+    // reorder window: a min-heap on (start, row number) over parallel arrays
+    private final long[] heapStart = new long[WINDOW];
+    private final long[] heapRow = new long[WINDOW];
+    private final long[] heapEnd = new long[WINDOW];
+    private final int[] heapNote = new int[WINDOW];
+    private final int[] heapTimbre = new int[WINDOW];
+    private int heapSize = 0;
+
+    // chunk being filled
+    private int[] notes;
+    private int[] timbres;
+    private long[] starts;
+    private long[] ends;
+    private int chunkSize;
+    private long lastStart = Long.MIN_VALUE;
+
+    private ScoreStream(File file) {
+        this.file = file;
+        this.fileBytes = file.length();
+        newChunk();
+        reader = new Thread(this::readAll, "score-stream");
+        reader.setDaemon(true);
+    }
+
+    public static ScoreStream open(File file) throws FileNotFoundException {
+        if (!file.isFile()) throw new FileNotFoundException(file.getPath());
+        ScoreStream stream = new ScoreStream(file);
+        stream.reader.start();
+        return stream;
+    }
+
+    // Next chunk, or null if none is ready yet. Never blocks or allocates, so
+    // the render thread can call it.
+    Score poll() {
+        Chunk chunk = ready.poll();
+        if (chunk == null) return null;
+        queued.decrementAndGet();
+        consumedOffset = chunk.endOffset;
+        LockSupport.unpark(reader);
+        return chunk.score;
+    }
+
+    // Waits for the next chunk; an empty Score once the file is used up.
+    Score take() throws InterruptedException {
+        while (true) {
+            Score score = poll();
+            if (score != null) return score;
+            if (isExhausted()) return new Score(new int[0], new int[0], new long[0], new long[0], 0);
+            if (Thread.interrupted()) throw new InterruptedException();
+            LockSupport.parkNanos(this, 1_000_000);
+        }
+    }
+
+    // true once the reader has finished and every chunk has been taken
+    boolean isExhausted() {
+        return done && ready.isEmpty();
+    }
+
+    // filled by the reader for every piano note it meets, before the chunk
+    // holding that note is published
+    ShortBuffer[] pianoSamples() {
+        return pianoSamples;
+    }
+
+    // share of the file handed to the sequencer so far, 0..1
+    public double progress() {
+        return fileBytes == 0 ? 1.0 : Math.min(1.0, consumedOffset / (double) fileBytes);
+    }
+
+    public long notesRead() {
+        return notesRead;
+    }
+
+    public long lateNotes() {
+        return lateNotes;
+    }
+
+    // the read error that ended the stream early, if any
+    public IOException error() {
+        return error;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(reader);
+    }
+
+    private void readAll() {
+        long row = 0;
+        try (InputStream file = new FileInputStream(this.file)) {
+            // a bad row can't stop a song that is already playing; it is skipped
+            // and reported when the file has been read
+            RecordingRows in = RecordingReader.open(file, true);
+            while (!closed && in.next()) {
+                int note = in.note();
+                if (in.timbre() == ToneGenerator.PIANO && pianoSamples[note] == null) {
+                    pianoSamples[note] = ToneGenerator.getPianoSample(ToneGenerator.NOTES[note]);
+                }
+                if (heapSize == WINDOW) {
+                    emit(in.bytesRead());
+                }
+                push(in.start(), row++, in.end(), note, in.timbre());
+                notesRead = row;
+            }
+            while (!closed && heapSize > 0) {
+                emit(in.bytesRead());
+            }
+            if (chunkSize > 0) publish(in.bytesRead());
+            in.reportSkipped(this.file);
+        } catch (IOException e) {
+            error = e;
+            e.printStackTrace();
+        } finally {
+            done = true;
+        }
+    }
+
+    // moves the earliest row of the window into the chunk being filled
+    private void emit(long offset) {
+        long start = heapStart[0];
+        if (start < lastStart) {
+            start = lastStart; // arrived after later notes were already out
+            lateNotes++;
+        }
+        lastStart = start;
+        notes[chunkSize] = heapNote[0];
+        timbres[chunkSize] = heapTimbre[0];
+        starts[chunkSize] = start;
+        ends[chunkSize] = heapEnd[0];
+        chunkSize++;
+        pop();
+        if (chunkSize == CHUNK_NOTES) publish(offset);
+    }
+
+    private void publish(long offset) {
+        while (!closed && queued.get() >= MAX_QUEUED) {
+            LockSupport.parkNanos(this, 10_000_000);
+        }
+        if (closed) return;
+        ready.add(new Chunk(new Score(notes, timbres, starts, ends, chunkSize), offset));
+        queued.incrementAndGet();
+        newChunk();
+    }
+
+    private void newChunk() {
+        notes = new int[CHUNK_NOTES];
+        timbres = new int[CHUNK_NOTES];
+        starts = new long[CHUNK_NOTES];
+        ends = new long[CHUNK_NOTES];
+        chunkSize = 0;
+    }
+
+    private boolean less(int a, int b) {
+        return heapStart[a] < heapStart[b] || (heapStart[a] == heapStart[b] && heapRow[a] < heapRow[b]);
+    }
+
+    private void push(long start, long row, long end, int note, int timbre) {
+        int i = heapSize++;
+        set(i, start, row, end, note, timbre);
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void pop() {
+        heapSize--;
+        if (heapSize == 0) return;
+        swap(0, heapSize);
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && less(child + 1, child)) child++;
+            if (!less(child, i)) break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void set(int i, long start, long row, long end, int note, int timbre) {
+        heapStart[i] = start;
+        heapRow[i] = row;
+        heapEnd[i] = end;
+        heapNote[i] = note;
+        heapTimbre[i] = timbre;
+    }
+
+    private void swap(int a, int b) {
+        long s = heapStart[a], r = heapRow[a], e = heapEnd[a];
+        int n = heapNote[a], t = heapTimbre[a];
+        set(a, heapStart[b], heapRow[b], heapEnd[b], heapNote[b], heapTimbre[b]);
+        set(b, s, r, e, n, t);
+    }
+}
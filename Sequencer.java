@@ -0,0 +1,313 @@
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Plays a Score from inside the AudioEngine render loop. The song position is
+// counted in output frames, so every note on and off lands on its exact sample
+// and pausing stops the clock itself rather than shifting a wall-clock offset.
+//
+// Everything is resolved up front (piano samples, the note-off heap), so the
+// render thread only walks arrays. The control flags are the only state shared
+// with other threads.
+//
+// Seeks and A-B loops reuse the same arrays: a jump releases what is sounding,
+// moves the cursor with a binary search and strikes the notes already under
+// way at the target, found through Score.soundingAt.
+//
+// Built on a ScoreStream instead, the sequencer plays chunk after chunk as the
+// stream's reader thread produces them. Seeks and loops need the whole score,
+// so they are ignored in that mode.
+public class Sequencer {
+    // most notes a stream may hold at once; past that the earliest to end is cut
+    private static final int STREAM_MAX_SOUNDING = 4096;
+
+    private final ScoreStream stream;
+    private final ShortBuffer[] samples; // piano sample per note id
+    private final int[] held;            // sounding notes per note id, for the UI
+    private Score score;
+
+    // pending note-offs, a binary min-heap of endFrame << 23 | timbre << 6 | note
+    private final long[] offs;
+    private final int[] scratch;
+    private int offCount = 0;
+    private int cursor = 0;
+    private long position = 0;
+    private boolean paused = false;
+    private long underruns = 0;
+
+    private volatile boolean pauseRequested = false;
+    private volatile boolean stopRequested = false;
+    private volatile boolean finished = false;
+    private volatile long positionFrames = 0;
+    private final AtomicLong seekRequest = new AtomicLong(-1);
+    private volatile long loopStart = 0;
+    private volatile long loopEnd = -1;
+    private volatile int jumps = 0;
+
+    public Sequencer(Score score) {
+        if (score.size() >= (1 << 23)) {
+            throw new IllegalArgumentException("Score too long to sequence: " + score.size() + " notes");
+        }
+        this.stream = null;
+        this.score = score;
+        int n = score.size();
+        samples = new ShortBuffer[ToneGenerator.NOTES.length];
+        held = new int[ToneGenerator.NOTES.length];
+        offs = new long[n];
+        scratch = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (score.timbre(i) == ToneGenerator.PIANO && samples[score.note(i)] == null) {
+                samples[score.note(i)] = ToneGenerator.getPianoSample(score.noteName(i));
+            }
+        }
+        finished = n == 0;
+    }
+
+    // Waits for the stream's first chunk, so playback starts as soon as the
+    // head of the file is parsed rather than when all of it is.
+    public Sequencer(ScoreStream stream) throws InterruptedException {
+        this.stream = stream;
+        this.score = stream.take();
+        samples = stream.pianoSamples();
+        held = new int[ToneGenerator.NOTES.length];
+        offs = new long[STREAM_MAX_SOUNDING];
+        scratch = null;
+        finished = score.isEmpty() && stream.isExhausted();
+    }
+
+    // the whole score, or the chunk being played when streaming
+    public Score score() {
+        return score;
+    }
+
+    public boolean isStreaming() {
+        return stream != null;
+    }
+
+    // Takes effect at the start of the next rendered block. Sounding notes are
+    // released on pause and struck again on resume with their remaining length.
+    public void setPaused(boolean paused) {
+        pauseRequested = paused;
+    }
+
+    public boolean isPaused() {
+        return pauseRequested;
+    }
+
+    public void stop() {
+        stopRequested = true;
+    }
+
+    // Moves playback to ms from the next block on. Notes already sounding at
+    // that point start there too, for whatever length they have left.
+    public void seek(long ms) {
+        seekRequest.set(Math.max(0, ms));
+    }
+
+    // While a loop is set, reaching endMs (or seeking past it) jumps back to
+    // startMs, and the song never finishes on its own.
+    public void setLoop(long startMs, long endMs) {
+        loopEnd = -1;
+        loopStart = Math.max(0, startMs);
+        loopEnd = endMs;
+    }
+
+    public void clearLoop() {
+        loopEnd = -1;
+    }
+
+    // incremented on every seek or loop jump, so followers can tell the
+    // position moved without playing through
+    public int jumpCount() {
+        return jumps;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // song position in frames; does not move while paused
+    public long position() {
+        return positionFrames;
+    }
+
+    public long positionMillis() {
+        return positionFrames * 1000 / (long) AudioEngine.SAMPLE_RATE;
+    }
+
+    // How many of this note's voices the sequencer holds. For display only:
+    // read after position() to see the counts as of that position.
+    public int heldCount(int note) {
+        return held[note];
+    }
+
+    // blocks in which a stream had no chunk ready in time
+    public long underruns() {
+        return underruns;
+    }
+
+    static long msToFrame(long ms) {
+        return Math.max(0, ms) * (long) AudioEngine.SAMPLE_RATE / 1000;
+    }
+
+    // Render thread only. Fires every event due at the current position and
+    // returns how many frames (at most max) can be rendered before the next
+    // one, moving the position past them.
+    int advance(AudioEngine engine, int max) {
+        if (finished) return max;
+        if (stopRequested) {
+            halt(engine);
+            return max;
+        }
+        if (pauseRequested != paused) {
+            paused = pauseRequested;
+            for (int i = 0; i < offCount; i++) {
+                int note = noteOf(offs[i]);
+                if (paused) {
+                    engine.noteOffNow(note);
+                } else {
+                    engine.noteOnNow(note, timbreOf(offs[i]), samples[note]);
+                }
+            }
+        }
+        boolean looping = false;
+        long loopEndFrame = Long.MAX_VALUE;
+        if (stream == null) {
+            long seek = seekRequest.getAndSet(-1);
+            if (seek >= 0) {
+                jump(engine, seek);
+            }
+            long loopFrom = loopStart;
+            long loopTo = loopEnd;
+            looping = loopTo > loopFrom;
+            if (looping) loopEndFrame = msToFrame(loopTo);
+            if (looping && position >= loopEndFrame) {
+                jump(engine, loopFrom);
+            }
+        }
+        if (paused) return max;
+
+        // offs first, so a note ending and restarting on this frame retriggers
+        while (offCount > 0 && (offs[0] >>> 23) <= position) {
+            release(engine, popOff());
+        }
+        while (hasNext() && msToFrame(score.start(cursor)) <= position) {
+            int i = cursor++;
+            int note = score.note(i);
+            int timbre = score.timbre(i);
+            engine.noteOnNow(note, timbre, samples[note]);
+            held[note]++;
+            if (offCount == offs.length) {
+                release(engine, popOff()); // stream only: too many held at once
+            }
+            long end = Math.max(msToFrame(score.start(i)), msToFrame(score.end(i)));
+            pushOff((end << 23) | ((long) timbre << 6) | note);
+        }
+        boolean more = cursor < score.size() || (stream != null && !stream.isExhausted());
+        if (!more && offCount == 0 && !looping) {
+            finished = true;
+            if (stream != null) stream.close();
+            return max;
+        }
+
+        long next = loopEndFrame;
+        if (cursor < score.size()) {
+            next = Math.min(next, msToFrame(score.start(cursor)));
+        } else if (more) {
+            underruns++; // the reader is behind; look again next block
+        }
+        if (offCount > 0) next = Math.min(next, offs[0] >>> 23);
+        int frames = (int) Math.max(1, Math.min(max, next - position));
+        position += frames;
+        positionFrames = position;
+        return frames;
+    }
+
+    // Moves on to the stream's next chunk when the current one is used up.
+    private boolean hasNext() {
+        if (cursor < score.size()) return true;
+        if (stream == null) return false;
+        Score next = stream.poll();
+        if (next == null) return false;
+        score = next;
+        cursor = 0;
+        return next.size() > 0;
+    }
+
+    private void release(AudioEngine engine, long off) {
+        engine.noteOffNow(noteOf(off));
+        held[noteOf(off)]--;
+    }
+
+    private static int noteOf(long off) {
+        return (int) (off & 0x3F);
+    }
+
+    private static int timbreOf(long off) {
+        return (int) ((off >>> 6) & 0x7);
+    }
+
+    // Render thread only: releases the sounding notes and continues from ms.
+    // Paused, the new notes are only queued; resume strikes them.
+    private void jump(AudioEngine engine, long ms) {
+        releaseAll(engine);
+        position = msToFrame(ms);
+        positionFrames = position;
+        cursor = score.firstStartingAtOrAfter(ms);
+        int count = score.soundingAt(ms, scratch);
+        for (int k = 0; k < count; k++) {
+            int i = scratch[k];
+            int note = score.note(i);
+            if (!paused) {
+                engine.noteOnNow(note, score.timbre(i), samples[note]);
+            }
+            held[note]++;
+            pushOff((msToFrame(score.end(i)) << 23) | ((long) score.timbre(i) << 6) | note);
+        }
+        jumps++;
+    }
+
+    // Render thread only: releases whatever is still sounding and ends the song.
+    void halt(AudioEngine engine) {
+        releaseAll(engine);
+        cursor = score.size();
+        finished = true;
+        if (stream != null) stream.close();
+    }
+
+    private void releaseAll(AudioEngine engine) {
+        for (int i = 0; i < offCount; i++) {
+            if (!paused) {
+                engine.noteOffNow(noteOf(offs[i]));
+            }
+            held[noteOf(offs[i])]--;
+        }
+        offCount = 0;
+    }
+
+    private void pushOff(long value) {
+        int i = offCount++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (offs[parent] <= value) break;
+            offs[i] = offs[parent];
+            i = parent;
+        }
+        offs[i] = value;
+    }
+
+    private long popOff() {
+        long top = offs[0];
+        long last = offs[--offCount];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= offCount) break;
+            if (child + 1 < offCount && offs[child + 1] < offs[child]) child++;
+            if (last <= offs[child]) break;
+            offs[i] = offs[child];
+            i = child;
+        }
+        offs[i] = last;
+        return top;
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Load test for PianoServer. The server runs in a child JVM so its memory and
+// threads can be read from /proc; every simulated client lives on one
+// selector thread here. For each room size it reports:
+//   join     - time to connect everyone and deliver the join announcements
+//              (each join goes to the whole room, so this grows as n^2; a
+//              client that connects before an earlier name has been read
+//              hears that join too, so the phase ends when the room goes quiet)
+//   rss      - server resident memory and thread count with the room full
+//   fan-out  - time from one client sending a MUSIC line until every other
+//              client has read it, over 200 rounds after 50 to warm up
+//
+// With --slow=K, K more clients join first and never read. Before the
+// fan-out rounds, a burst of 200000 notes (4.4 MB) is sent in steps of 500, each step
+// waiting for the room to read it; the report says how long the burst took,
+// or that it stalled behind the clients that don't read.
+//
+// Usage: java ServerLoadTest [--slow=K] [server options ...] [clients ...]
+//   server options are passed to PianoServer, e.g. --nio; default room sizes
+//   are 100 500 1000 2000
+public class ServerLoadTest {
+    private static final int ROUNDS = 200;
+    private static final int WARMUP_ROUNDS = 50;
+    private static final long TIMEOUT_NANOS = 3_600_000_000_000L;
+    private static final int BURST = 200000;
+    private static final int BURST_STEP = 500;
+    private static final long BURST_STALL_NANOS = 30_000_000_000L;
+    private static final long QUIET_NANOS = 1_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        List<String> serverArgs = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        int slow = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--slow=")) {
+                slow = Integer.parseInt(arg.substring("--slow=".length()));
+            } else if (arg.startsWith("--")) {
+                serverArgs.add(arg);
+            } else {
+                sizes.add(Integer.parseInt(arg));
+            }
+        }
+        if (sizes.isEmpty()) sizes.addAll(List.of(100, 500, 1000, 2000));
+
+        String mode = serverArgs.isEmpty() ? "threads" : String.join(" ", serverArgs);
+        System.out.printf("%-16s %7s %8s %8s %8s %10s %10s %10s%n",
+            "server", "clients", "join s", "rss MB", "threads", "p50 ms", "p99 ms", "max ms");
+        for (int clients : sizes) {
+            run(serverArgs, mode, clients, slow);
+        }
+    }
+
+    private static void run(List<String> serverArgs, String mode, int clients, int slow) throws Exception {
+        List<String> command = new ArrayList<>(List.of(
+            System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"),
+            "PianoServer", "--port=0"));
+        command.addAll(serverArgs);
+        Process server = new ProcessBuilder(command).redirectErrorStream(true).start();
+        int port = readPort(server);
+
+        SocketChannel[] stalled = new SocketChannel[slow];
+        SocketChannel[] channels = new SocketChannel[clients];
+        // lines of the kind being counted per client, and the first byte of
+        // the line each client is in the middle of (0 at a line start)
+        long[] lines = new long[clients];
+        byte[] lineKind = new byte[clients];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (Selector selector = Selector.open()) {
+            // join: client i hears at least its own join and every later one
+            long joinStart = System.nanoTime();
+            long expected = (long) clients * (clients + 1) / 2;
+            for (int i = 0; i < slow; i++) {
+                stalled[i] = SocketChannel.open();
+                stalled[i].setOption(java.net.StandardSocketOptions.SO_RCVBUF, 4096);
+                stalled[i].connect(new InetSocketAddress("localhost", port));
+                stalled[i].write(ByteBuffer.wrap(("slow" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                channel.write(ByteBuffer.wrap(("user" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, i);
+                channels[i] = channel;
+                drain(selector, buffer, lines, lineKind, (byte) 'C');
+            }
+            long total = waitFor(selector, buffer, lines, lineKind, (byte) 'C', expected, TIMEOUT_NANOS);
+            if (total < expected) {
+                System.out.printf("%-16s %7d  join incomplete: %d of %d lines%n", mode, clients, total, expected);
+                return;
+            }
+            double joinSeconds = (settle(selector, buffer, lines, lineKind) - joinStart) / 1e9;
+
+            long rssKb = procStatus(server.pid(), "VmRSS:");
+            long threads = procStatus(server.pid(), "Threads:");
+
+            // fan-out: everyone but the sender must read the line
+            Arrays.fill(lines, 0);
+            long[] latency = new long[ROUNDS];
+            byte[] note = "MUSIC,NOTE_ON,C4,sine\n".getBytes(StandardCharsets.UTF_8);
+            long received = 0;
+            if (slow > 0) {
+                byte[] step = new byte[note.length * BURST_STEP];
+                for (int i = 0; i < BURST_STEP; i++) System.arraycopy(note, 0, step, i * note.length, note.length);
+                long burstStart = System.nanoTime();
+                for (int sent = 0; sent < BURST; sent += BURST_STEP) {
+                    ByteBuffer out = ByteBuffer.wrap(step);
+                    while (out.hasRemaining()) channels[0].write(out);
+                    long target = received + (long) BURST_STEP * (clients - 1);
+                    received = waitFor(selector, buffer, lines, lineKind, (byte) 'M', target, BURST_STALL_NANOS);
+                    if (received < target) {
+                        System.out.printf("%-16s %7d  burst stalled after %d of %d notes with %d slow clients%n",
+                            mode, clients, sent, BURST, slow);
+                        return;
+                    }
+                }
+                System.out.printf("%-16s %7d  burst of %d notes past %d slow clients: %.2f s%n",
+                    mode, clients, BURST, slow, (System.nanoTime() - burstStart) / 1e9);
+            }
+            for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+                SocketChannel sender = channels[Math.floorMod(round * 7919, clients)];
+                long t0 = System.nanoTime();
+                ByteBuffer out = ByteBuffer.wrap(note);
+                while (out.hasRemaining()) sender.write(out);
+                received = waitFor(selector, buffer, lines, lineKind, (byte) 'M', received + clients - 1,
+                    TIMEOUT_NANOS);
+                if (round >= 0) latency[round] = System.nanoTime() - t0;
+            }
+            Arrays.sort(latency);
+            System.out.printf("%-16s %7d %8.2f %8.1f %8d %10.2f %10.2f %10.2f%n", mode, clients, joinSeconds,
+                rssKb / 1024.0, threads, latency[ROUNDS / 2] / 1e6, latency[ROUNDS * 99 / 100] / 1e6,
+                latency[ROUNDS - 1] / 1e6);
+        } finally {
+            for (SocketChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+            for (SocketChannel channel : stalled) {
+                if (channel != null) channel.close();
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // the port from the server's "running on port" line; the rest of its
+    // output is drained on a daemon thread so it never blocks
+    private static int readPort(Process server) throws IOException {
+        BufferedReader out = new BufferedReader(new InputStreamReader(server.getInputStream()));
+        String line;
+        while ((line = out.readLine()) != null) {
+            int at = line.indexOf("running on port ");
+            if (at >= 0) {
+                String rest = line.substring(at + "running on port ".length());
+                int port = Integer.parseInt(rest.split("[^0-9]")[0]);
+                Thread drain = new Thread(() -> {
+                    try {
+                        while (out.readLine() != null) {
+                            // discard
+                        }
+                    } catch (IOException ignored) {}
+                });
+                drain.setDaemon(true);
+                drain.start();
+                return port;
+            }
+        }
+        throw new IOException("Server exited before listening");
+    }
+
+    // Reads until the clients have seen target lines of kind in total, or
+    // times out.
+    private static long waitFor(Selector selector, ByteBuffer buffer, long[] lines, byte[] lineKind, byte kind,
+            long target, long timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout;
+        long total = sum(lines);
+        while (total < target && System.nanoTime() < deadline) {
+            if (selector.select(1000) > 0) {
+                total += drain(selector, buffer, lines, lineKind, kind);
+            }
+        }
+        return total;
+    }
+
+    // Reads until nothing has arrived for QUIET_NANOS; returns when the last
+    // bytes came.
+    private static long settle(Selector selector, ByteBuffer buffer, long[] lines, byte[] lineKind)
+            throws IOException {
+        long last = System.nanoTime();
+        while (selector.select(QUIET_NANOS / 1_000_000) > 0) {
+            drain(selector, buffer, lines, lineKind, (byte) 0);
+            last = System.nanoTime();
+        }
+        return last;
+    }
+
+    // Reads every ready channel and counts the lines starting with kind;
+    // returns how many.
+    private static long drain(Selector selector, ByteBuffer buffer, long[] lines, byte[] lineKind, byte kind)
+            throws IOException {
+        selector.selectNow();
+        long count = 0;
+        for (SelectionKey key : selector.selectedKeys()) {
+            int client = (Integer) key.attachment();
+            SocketChannel channel = (SocketChannel) key.channel();
+            while (true) {
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '\n') {
+                        if (lineKind[client] == kind) {
+                            lines[client]++;
+                            count++;
+                        }
+                        lineKind[client] = 0;
+                    } else if (lineKind[client] == 0) {
+                        lineKind[client] = b;
+                    }
+                }
+            }
+        }
+        selector.selectedKeys().clear();
+        return count;
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long v : values) total += v;
+        return total;
+    }
+
+    // a number from /proc/<pid>/status, -1 where there is no /proc
+    private static long procStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return -1;
+    }
+}
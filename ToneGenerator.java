@@ -1,148 +1,141 @@
-import java.io.*;
+import java.nio.ShortBuffer;
 import java.util.*;
-import java.util.concurrent.*;
-import javax.sound.sampled.*;
 
 public class ToneGenerator {
-    private static final float SAMPLE_RATE = 44100f;
-    private static final Map<String, SourceDataLine> playingLines = new ConcurrentHashMap<>();
-    private static final Map<String, Boolean> keyPressed = new ConcurrentHashMap<>();
-    private static final Map<String, Thread> keyThreads = new ConcurrentHashMap<>();
-    private static final Map<String, String> currentTimbre = new ConcurrentHashMap<>();
-    private static final Map<String, byte[]> pianoSamples = new ConcurrentHashMap<>();
-    private static final Map<String, Integer> pianoOffsets = new ConcurrentHashMap<>();
+    static final String[] NOTES = {
+        "C4", "C#4", "D4", "D#4", "E4", "F4", "F#4", "G4", "G#4", "A4", "A#4", "B4",
+        "C5", "C#5", "D5", "D#5", "E5", "F5", "F#5", "G5", "G#5", "A5", "A#5", "B5",
+        "C6", "C#6", "D6", "D#6", "E6", "F6", "F#6", "G6", "G#6", "A6", "A#6", "B6", "C7"
+    };
+    static final String[] TIMBRES = {"sine", "square", "triangle", "sawtooth", "piano"};
+    static final int SINE = 0;
+    static final int SQUARE = 1;
+    static final int TRIANGLE = 2;
+    static final int SAWTOOTH = 3;
+    static final int PIANO = 4;
+
+    private static final Map<String, Integer> noteIndex = new HashMap<>();
+    private static final Map<String, Integer> timbreIndex = new HashMap<>();
+    private static final String PIANO_DIR = "piano_samples";
+    private static final SampleStore samples = SampleStore.withDefaultBudget();
     private static volatile double globalVolume = 0.5;
+    // wavetable oscillators by default, -Dpiano.oscillator=exact for the Math.sin path
+    private static volatile boolean wavetableOscillators =
+        !"exact".equalsIgnoreCase(System.getProperty("piano.oscillator"));
+    private static AudioEngine engine;
+
+    static {
+        for (int i = 0; i < NOTES.length; i++) {
+            noteIndex.put(NOTES[i], i);
+        }
+        for (int i = 0; i < TIMBRES.length; i++) {
+            timbreIndex.put(TIMBRES[i], i);
+        }
+    }
+
+    // -1 for names outside the keyboard
+    static int noteId(String note) {
+        return noteIndex.getOrDefault(note, -1);
+    }
+
+    // Unknown timbres fall back to sine, same as generateWave always did
+    static int timbreId(String timbre) {
+        return timbreIndex.getOrDefault(timbre, SINE);
+    }
 
     public static void setGlobalVolume(double volume) {
         globalVolume = Math.max(0.0, Math.min(1.0, volume));
     }
 
-    public static void loadPianoSamples() {
-        String[] notes = {
-            "C4", "C#4", "D4", "D#4", "E4", "F4", "F#4", "G4", "G#4", "A4", "A#4", "B4",
-            "C5", "C#5", "D5", "D#5", "E5", "F5", "F#5", "G5", "G#5", "A5", "A#5", "B5",
-            "C6", "C#6", "D6", "D#6", "E6", "F6", "F#6", "G6", "G#6", "A6", "A#6", "B6", "C7"
-        };
-        for (String note : notes) {
-            try {
-                File file = new File("piano_samples/" + note + ".wav");
-                AudioInputStream ais = AudioSystem.getAudioInputStream(file);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                byte[] buffer = new byte[1024];
-                int read;
-                while ((read = ais.read(buffer)) != -1) {
-                    baos.write(buffer, 0, read);
-                }
-                pianoSamples.put(note, baos.toByteArray());
-                // System.out.println("Loaded sample for " + note);
-            } catch (Exception e) {
-                System.err.println("Failed to load sample for " + note);
-            }
-        }
+    static double getGlobalVolume() {
+        return globalVolume;
+    }
+
+    public static void setWavetableOscillators(boolean enabled) {
+        wavetableOscillators = enabled;
     }
 
+    static boolean isWavetableOscillators() {
+        return wavetableOscillators;
+    }
+
+    // Piano samples are decoded lazily on first use; this forces every note in now,
+    // from the decoded-PCM cache when it's valid. Returns true on a cache hit.
+    public static boolean loadPianoSamples() {
+        return SampleCache.loadInto(samples, PIANO_DIR, NOTES);
+    }
+
+    static ShortBuffer getPianoSample(String note) {
+        return samples.get(PIANO_DIR, note);
+    }
+
+    static SampleStore getSampleStore() {
+        return samples;
+    }
+
+    // All keys share one mixing engine, so the key count no longer decides
+    // how many threads or output lines are opened.
     public static void initializeKeys(Set<String> allKeys) {
-        for (String key : allKeys) {
-            keyPressed.put(key, false);
-            currentTimbre.put(key, "sine");
-
-            Thread thread = new Thread(() -> {
-                try {
-                    AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
-                    SourceDataLine line = AudioSystem.getSourceDataLine(format);
-                    line.open(format);
-                    line.start();
-                    playingLines.put(key, line);
-
-                    double freq = getFrequency(key);
-                    double phase = 0.0;
-                    double phaseIncrement = 2.0 * Math.PI * freq / SAMPLE_RATE;
-
-                    int smallChunkSize = 256;
-                    boolean wasPressed = false;
-
-                    while (true) {
-                        String timbre = currentTimbre.getOrDefault(key, "sine");
-
-                        if (keyPressed.getOrDefault(key, false)) {
-                            if (!wasPressed) {
-                                line.start();
-                                wasPressed = true;
-
-                                if ("piano".equals(timbre)) {
-                                    pianoOffsets.put(key, 0);
-                                }
-                            }
-
-                            byte[] buffer = new byte[2 * smallChunkSize];
-
-                            if ("piano".equals(timbre)) {
-                                byte[] sample = pianoSamples.get(key);
-                                int offset = pianoOffsets.getOrDefault(key, 0);
-                                if (sample != null && offset < sample.length) {
-                                    int bytesToWrite = Math.min(buffer.length, sample.length - offset);
-                                    for (int i = 0; i < bytesToWrite; i += 2) {
-                                        if (offset + i + 1 >= sample.length) break;
-                                    
-                                        int low = sample[offset + i] & 0xff;
-                                        int high = sample[offset + i + 1];
-                                        short origSample = (short) ((high << 8) | low);
-                                        short scaledSample = (short) (origSample * globalVolume);  // apply global volume
-                                    
-                                        buffer[i] = (byte) (scaledSample & 0xff);
-                                        buffer[i + 1] = (byte) ((scaledSample >> 8) & 0xff);
-                                    }
-                                    line.write(buffer, 0, bytesToWrite);
-                                    pianoOffsets.put(key, offset + bytesToWrite);
-                                } else {
-                                    keyPressed.put(key, false); // sample finished
-                                }
-                            } else {
-                                for (int i = 0; i < smallChunkSize; i++) {
-                                    double wave = generateWave(phase, timbre);
-                                    short sample = (short) (wave * globalVolume * Short.MAX_VALUE);
-                                    buffer[2 * i] = (byte) (sample & 0xff);
-                                    buffer[2 * i + 1] = (byte) ((sample >> 8) & 0xff);
-
-                                    phase += phaseIncrement;
-                                    if (phase >= 2.0 * Math.PI) {
-                                        phase -= 2.0 * Math.PI;
-                                    }
-                                }
-                                line.write(buffer, 0, buffer.length);
-                            }
-
-                        } else {
-                            if (wasPressed) {
-                                line.stop();
-                                line.flush();
-                                wasPressed = false;
-                            }
-                            Thread.sleep(5);
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            });
-
-            thread.start();
-            keyThreads.put(key, thread);
+        double[] freqs = new double[NOTES.length];
+        for (int i = 0; i < NOTES.length; i++) {
+            freqs[i] = allKeys.contains(NOTES[i]) ? getFrequency(NOTES[i]) : 0.0;
         }
+        Wavetable.table(SINE); // build the tables now rather than on the first audio block
+        engine = new AudioEngine(NOTES, freqs);
+        engine.start();
+    }
+
+    // An engine with no output line, driven by calling render() directly.
+    static AudioEngine createOfflineEngine() {
+        double[] freqs = new double[NOTES.length];
+        for (int i = 0; i < NOTES.length; i++) {
+            freqs[i] = getFrequency(NOTES[i]);
+        }
+        return new AudioEngine(NOTES, freqs);
     }
 
     public static void playToneContinuous(double freq, String key, String timbre) {
-        keyPressed.put(key, true);
-        currentTimbre.put(key, timbre);
+        Integer idx = noteIndex.get(key);
+        if (engine != null && idx != null) {
+            engine.noteOn(idx, timbreId(timbre), AudioEngine.LOCAL);
+        }
     }
 
     public static void stopTone(String key) {
-        keyPressed.put(key, false);
+        Integer idx = noteIndex.get(key);
+        if (engine != null && idx != null) {
+            engine.noteOff(idx, AudioEngine.LOCAL);
+        }
+    }
+
+    // Same as playToneContinuous/stopTone for callers that already hold note and
+    // timbre ids; owner is an AudioEngine owner, and only its notes are stopped
+    static void playNote(int note, int timbre, int owner) {
+        if (engine != null) {
+            engine.noteOn(note, timbre, owner);
+        }
+    }
+
+    static void stopNote(int note, int owner) {
+        if (engine != null) {
+            engine.noteOff(note, owner);
+        }
+    }
+
+    // Metronome clicks are mixed by the engine on exact sample frames; 0 bpm stops it
+    public static void setMetronomeBpm(double bpm) {
+        if (engine != null) {
+            engine.setMetronomeBpm(bpm);
+        }
+    }
+
+    static AudioEngine getEngine() {
+        return engine;
     }
 
     public static void stopAllTones() {
-        for (String key : keyPressed.keySet()) {
-            stopTone(key);
+        if (engine != null) {
+            engine.allNotesOff();
         }
     }
 
@@ -154,46 +147,17 @@ public class ToneGenerator {
         }
     }
 
-    private static double generateWave(double phase, String timbre) {
+    static double generateWave(double phase, int timbre) {
         switch (timbre) {
-            case "square":
+            case SQUARE:
                 return Math.signum(Math.sin(phase));
-            case "triangle":
+            case TRIANGLE:
                 return 2.0 / Math.PI * Math.asin(Math.sin(phase));
-            case "sawtooth":
+            case SAWTOOTH:
                 return 2.0 * (phase / (2.0 * Math.PI)) - 1.0;
-            case "sine":
+            case SINE:
             default:
                 return Math.sin(phase);
         }
     }
-
-    
-
-    // individual beep sound play only for metronome
-    public static void beepSound() {
-        final float SAMPLE_RATE = 44100;
-        final int DURATION_MS = 100;
-        final double FREQUENCY = 880;  // play A5
-    
-        byte[] buf = new byte[2];
-        AudioFormat af = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
-    
-        try (SourceDataLine sdl = AudioSystem.getSourceDataLine(af)) {
-            sdl.open(af);
-            sdl.start();
-    
-            for (int i = 0; i < (int)(SAMPLE_RATE * DURATION_MS / 1000); i++) {
-                double angle = i / (SAMPLE_RATE / FREQUENCY) * 2.0 * Math.PI;
-                short sample = (short)(Math.sin(angle) * 32767);
-                buf[0] = (byte)(sample & 0xFF);
-                buf[1] = (byte)((sample >> 8) & 0xFF);
-                sdl.write(buf, 0, 2);
-            }
-    
-            sdl.drain();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-}
\ No newline at end of file
+}
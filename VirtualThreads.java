@@ -0,0 +1,58 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Thread factories for blocking network code that can run on virtual threads
+// (JDK 21+). The code still builds and runs on 17, so Thread.ofVirtual() is
+// looked up reflectively; where it is missing, factory() falls back to
+// platform threads with a warning.
+public class VirtualThreads {
+    private static final Method OF_VIRTUAL = lookup();
+
+    private VirtualThreads() {}
+
+    private static Method lookup() {
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // Threads named prefix0, prefix1, ...: virtual if asked for and
+    // available, otherwise platform threads.
+    public static ThreadFactory factory(String prefix, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Object b = OF_VIRTUAL.invoke(null);
+                b = builder.getMethod("name", String.class, long.class).invoke(b, prefix, 0L);
+                return (ThreadFactory) builder.getMethod("factory").invoke(b);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Could not create virtual threads (" + e + "); using platform threads");
+            }
+        } else if (virtual) {
+            System.err.println("Virtual threads need Java 21 or later; using platform threads");
+        }
+        return new PlatformFactory(prefix);
+    }
+
+    // Whether factory() gave virtual threads, as asked, or fell back.
+    public static boolean isVirtual(ThreadFactory factory) {
+        return !(factory instanceof PlatformFactory);
+    }
+
+    private static final class PlatformFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicLong next = new AtomicLong();
+
+        PlatformFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            return new Thread(task, prefix + next.getAndIncrement());
+        }
+    }
+}
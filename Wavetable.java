@@ -0,0 +1,35 @@
+// Precomputed single-cycle tables for the oscillator timbres.
+// Built once when the class loads; read with the engine's radian phase
+// and linear interpolation between neighbouring entries.
+public class Wavetable {
+    static final int SIZE = 4096;
+    private static final double TWO_PI = 2.0 * Math.PI;
+    private static final double SCALE = SIZE / TWO_PI;
+
+    // one guard entry at the end so interpolation never wraps the index
+    private static final double[][] TABLES = new double[ToneGenerator.PIANO][];
+
+    static {
+        for (int timbre = 0; timbre < TABLES.length; timbre++) {
+            double[] table = new double[SIZE + 1];
+            for (int i = 0; i < SIZE; i++) {
+                table[i] = ToneGenerator.generateWave(i * TWO_PI / SIZE, timbre);
+            }
+            table[SIZE] = table[0];
+            TABLES[timbre] = table;
+        }
+    }
+
+    static double[] table(int timbre) {
+        return timbre >= 0 && timbre < TABLES.length ? TABLES[timbre] : TABLES[ToneGenerator.SINE];
+    }
+
+    // phase in radians, 0 <= phase < 2*PI
+    static double read(double[] table, double phase) {
+        double pos = phase * SCALE;
+        int i = (int) pos;
+        double frac = pos - i;
+        double a = table[i];
+        return a + (table[i + 1] - a) * frac;
+    }
+}
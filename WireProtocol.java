@@ -0,0 +1,227 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The binary form of note events on the wire, next to the text lines.
+//
+// A frame is a header byte, 0x80 | n, then n bytes (1..127) of events. Every
+// text line in the protocol starts with an ASCII letter, so the first byte of
+// a message says which it is, and lines and frames can follow each other on
+// one connection. Chat is always text.
+//
+// An event is an opcode, a note id (ToneGenerator.NOTES) and a timbre id
+// (ToneGenerator.TIMBRES). With TIMESTAMP set in the opcode, four bytes of the
+// sender's clock in ms follow, big-endian. NOTE_ON C#5 sawtooth is 4 bytes as
+// a frame and 27 as "MUSIC,NOTE_ON,C#5,sawtooth\n".
+//
+// Frames are negotiated. After its username, a client that speaks them sends
+// HELLO; a server that does too answers HELLO, and may send that client
+// frames from then on. The client only sends frames once it has the answer.
+// Older servers ignore the line and the client stays on text; older clients
+// never ask and only ever get text. A server reads frames only from clients
+// that asked: from the rest every message is a text line, even one starting
+// with a non-ASCII byte.
+public class WireProtocol {
+    public static final String HELLO = "HELLO,FRAMES1";
+    public static final int NOTE_ON = 1;
+    public static final int NOTE_OFF = 2;
+    public static final int TIMESTAMP = 0x40;
+
+    static final int FRAME_BIT = 0x80;
+    static final int MAX_PAYLOAD = 127;
+
+    private WireProtocol() {}
+
+    // b is the first byte of a message, 0..255
+    public static boolean isFrame(int b) {
+        return (b & FRAME_BIT) != 0;
+    }
+
+    // A frame holding one event.
+    public static byte[] frame(int op, int note, int timbre) {
+        return new byte[] {(byte) (FRAME_BIT | 3), (byte) op, (byte) note, (byte) timbre};
+    }
+
+    public static byte[] frame(int op, int note, int timbre, long millis) {
+        int t = (int) millis;
+        return new byte[] {(byte) (FRAME_BIT | 7), (byte) (op | TIMESTAMP), (byte) note, (byte) timbre,
+            (byte) (t >>> 24), (byte) (t >>> 16), (byte) (t >>> 8), (byte) t};
+    }
+
+    static int eventLength(int op) {
+        return (op & TIMESTAMP) != 0 ? 7 : 3;
+    }
+
+    public interface Events {
+        // millis is -1 for events sent without a timestamp
+        void event(int op, int note, int timbre, long millis);
+    }
+
+    // Reports every event in a whole frame, header included, from position
+    // on; the buffer's position is left alone. Returns false for a malformed
+    // frame, after reporting the events before the bad one.
+    public static boolean decode(ByteBuffer frame, Events events) {
+        int at = frame.position();
+        int end = at + 1 + (frame.get(at) & MAX_PAYLOAD);
+        if (end > frame.limit()) return false;
+        at++;
+        while (at < end) {
+            int op = frame.get(at) & 0xFF;
+            if (at + eventLength(op) > end) return false;
+            int note = frame.get(at + 1);
+            int timbre = frame.get(at + 2);
+            if (note < 0 || note >= ToneGenerator.NOTES.length || timbre < 0 || timbre >= ToneGenerator.TIMBRES.length) {
+                return false;
+            }
+            long millis = (op & TIMESTAMP) != 0 ? frame.getInt(at + 3) & 0xFFFFFFFFL : -1;
+            events.event(op & ~TIMESTAMP, note, timbre, millis);
+            at += eventLength(op);
+        }
+        return true;
+    }
+
+    // The frame's events as "MUSIC,NOTE_ON,C4,sine" lines, for clients that
+    // only read text. Unknown opcodes and anything after a malformed event
+    // are left out.
+    public static byte[] toText(ByteBuffer frame) {
+        StringBuilder text = new StringBuilder(32);
+        decode(frame, (op, note, timbre, millis) -> {
+            if (op != NOTE_ON && op != NOTE_OFF) return;
+            text.append(op == NOTE_ON ? "MUSIC,NOTE_ON," : "MUSIC,NOTE_OFF,")
+                .append(ToneGenerator.NOTES[note]).append(',')
+                .append(ToneGenerator.TIMBRES[timbre]).append('\n');
+        });
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Messages collected for one write. Events added one after another share
+    // frames, as many as fit in one; a text line ends the frame before it,
+    // so everything goes out in the order it was added.
+    public static final class Batch {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+        // header of the frame still taking events, or -1
+        private int frameStart = -1;
+        private int events = 0;
+
+        public void addEvent(int op, int note, int timbre) {
+            if (frameStart < 0 || size - frameStart - 1 + 3 > MAX_PAYLOAD) {
+                ensure(1);
+                frameStart = size;
+                bytes[size++] = (byte) FRAME_BIT;
+            }
+            ensure(3);
+            bytes[size++] = (byte) op;
+            bytes[size++] = (byte) note;
+            bytes[size++] = (byte) timbre;
+            bytes[frameStart] = (byte) (FRAME_BIT | (size - frameStart - 1));
+            events++;
+        }
+
+        // line without its line break
+        public void addLine(String line) {
+            byte[] b = line.getBytes(StandardCharsets.UTF_8);
+            ensure(b.length + 1);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+            bytes[size++] = '\n';
+            frameStart = -1;
+            events++;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        // events and lines added since the last clear
+        public int events() {
+            return events;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+
+        public void clear() {
+            size = 0;
+            frameStart = -1;
+            events = 0;
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+        }
+    }
+
+    // Reads a connection message by message: text lines and frames.
+    public static final class Reader {
+        public static final int EOF = 0;
+        public static final int TEXT = 1;
+        public static final int FRAME = 2;
+
+        private final InputStream in;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        private String text;
+        private byte[] frame;
+
+        public Reader(InputStream in) {
+            this.in = new BufferedInputStream(in);
+        }
+
+        public int next() throws IOException {
+            return next(true);
+        }
+
+        // With frames false, every message is a text line whatever its first
+        // byte: for a peer that hasn't negotiated frames.
+        public int next(boolean frames) throws IOException {
+            int b = in.read();
+            if (b < 0) return EOF;
+            if (frames && isFrame(b)) {
+                int n = b & MAX_PAYLOAD;
+                // a new array each time: it may be shared by every recipient
+                frame = new byte[1 + n];
+                frame[0] = (byte) b;
+                if (in.readNBytes(frame, 1, n) < n) throw new EOFException("Connection closed inside a frame");
+                return FRAME;
+            }
+            text = readText(b);
+            return TEXT;
+        }
+
+        // The next message as a text line, whatever its first byte, or null
+        // at the end: the username, which may start with any character.
+        public String readLine() throws IOException {
+            int b = in.read();
+            return b < 0 ? null : readText(b);
+        }
+
+        private String readText(int b) throws IOException {
+            line.reset();
+            while (b >= 0 && b != '\n') {
+                line.write(b);
+                b = in.read();
+            }
+            int length = line.size();
+            byte[] bytes = line.toByteArray();
+            if (length > 0 && bytes[length - 1] == '\r') length--;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // after TEXT: the line, without its line break
+        public String line() {
+            return text;
+        }
+
+        // after FRAME: the whole frame, header included
+        public byte[] frame() {
+            return frame;
+        }
+    }
+}